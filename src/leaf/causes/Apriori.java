@@ -0,0 +1,131 @@
+package leaf.causes;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+
+import leaf.context.ContextData;
+import leaf.tools.HistoryIndex;
+import leaf.tools.LeafLog;
+
+/**
+ * Mining of the conjunctions of context data frequently observed together in the failing situations of a task
+ * (Apriori-like, a failure is often caused by several context data at once).
+ * Conjunctions are built level by level, from the frequent conjunctions of the previous level sharing the same prefix;
+ * their support is counted on the bitmaps of the history index (intersection of the situations of its members),
+ * the history files are never read.
+ * A conjunction is kept if it explains the failures better than each of its members (see Conjunction.getScore()).
+ * @author Nathan Ramoly
+ *
+ */
+public class Apriori {
+
+	/**
+	 * Minimum number of failing situations where a conjunction is observed
+	 */
+	public static final int MINSUPPORT = 2;
+
+	/**
+	 * Maximum number of context data of a conjunction
+	 */
+	public static final int MAXSIZE = 3;
+
+	/**
+	 * Maximum number of frequent conjunctions of a level, the mining stops above
+	 */
+	public static final int MAXLEVEL = 10000;
+
+
+	/**
+	 * Mine the conjunctions of context data (among cds) observed together in failing situations of the task
+	 * @param cds Candidate context data (e.g. of the last failing situation)
+	 * @return Conjunctions of at least 2 context data scoring better than their members, by decreasing score
+	 */
+	public static ArrayList<Conjunction> mine(String task, Collection<ContextData> cds)
+	{
+		HistoryIndex index = HistoryIndex.getInstance();
+
+		//Level 1 - frequent context data, by increasing id
+		ArrayList<ContextData> sorted = new ArrayList<ContextData>(new HashSet<ContextData>(cds));
+		Collections.sort(sorted, new Comparator<ContextData>() {
+			@Override
+			public int compare(ContextData cd1, ContextData cd2) {
+				return Integer.compare(cd1.getId(), cd2.getId());
+			}
+		});
+
+		ArrayList<Conjunction> level = new ArrayList<Conjunction>();
+		HashMap<ContextData, Double> scores = new HashMap<ContextData, Double>();
+		for(ContextData cd: sorted)
+		{
+			Conjunction single = new Conjunction(Collections.singletonList(cd),
+					index.getSituations(task, cd, false), index.getSituations(task, cd, true));
+
+			if(single.getNbFail() >= MINSUPPORT)
+			{
+				level.add(single);
+				scores.put(cd, single.getScore());
+			}
+		}
+		ArrayList<Conjunction> singles = level;
+
+		//Next levels - extending each conjunction with the frequent context data of higher id
+		ArrayList<Conjunction> ret = new ArrayList<Conjunction>();
+		for(int size=2; size<=MAXSIZE && !level.isEmpty(); size++)
+		{
+			ArrayList<Conjunction> next = new ArrayList<Conjunction>();
+
+			for(Conjunction conj: level)
+			{
+				ContextData last = conj.getContextData().get(conj.getContextData().size()-1);
+
+				for(Conjunction single: singles)
+				{
+					ContextData cd = single.getContextData().get(0);
+
+					//Support is checked before building the conjunction
+					if(cd.getId() > last.getId() && conj.getFailSituations().andCardinality(single.getFailSituations()) >= MINSUPPORT)
+					{ next.add(conj.extend(single)); }
+				}
+			}
+
+			if(next.size() > MAXLEVEL)
+			{
+				LeafLog.w("Apriori", "Too many conjunctions of "+size+" context data ("+next.size()+"), mining stopped");
+				break;
+			}
+
+			for(Conjunction conj: next)
+			{
+				if(conj.getScore() > maxScore(conj, scores))
+				{ ret.add(conj); }
+			}
+
+			level = next;
+		}
+
+		Collections.sort(ret, new Comparator<Conjunction>() {
+			@Override
+			public int compare(Conjunction c1, Conjunction c2) {
+				return Double.compare(c2.getScore(), c1.getScore());
+			}
+		});
+
+		return ret;
+	}
+
+	/**
+	 * Best score of the members of a conjunction
+	 */
+	private static double maxScore(Conjunction conj, HashMap<ContextData, Double> scores)
+	{
+		double max = -1.0;
+		for(ContextData cd: conj.getContextData())
+		{ max = Math.max(max, scores.get(cd)); }
+
+		return max;
+	}
+}
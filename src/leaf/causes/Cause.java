@@ -0,0 +1,57 @@
+package leaf.causes;
+
+import leaf.context.ContextData;
+
+/**
+ * A failure cause of a task: a context data with the belief that it causes the failure,
+ * learnt from the feedbacks of the user.
+ * @author Nathan Ramoly
+ *
+ */
+public class Cause {
+
+	//** Attributes **//
+
+	private final ContextData cd;
+
+	private double belief;
+
+	private int nbrFeedback;
+
+
+	//** Methods **//
+
+	public Cause(ContextData cd, double belief, int nbrFeedback)
+	{
+		this.cd = cd;
+		this.belief = belief;
+		this.nbrFeedback = nbrFeedback;
+	}
+
+	/**
+	 * Take a feedback into account:  newB = (olbB*N + reward)/(N+1)   (and N=N+1 after aplying this)
+	 * @param reward Between 0 (not a cause) and 1 (cause)
+	 */
+	public void addFeedback(double reward)
+	{
+		belief = (belief*nbrFeedback + reward)/(nbrFeedback+1.0);
+		nbrFeedback++;
+	}
+
+	public ContextData getContextData() {
+		return cd;
+	}
+
+	public double getBelief() {
+		return belief;
+	}
+
+	public int getNbrFeedback() {
+		return nbrFeedback;
+	}
+
+	public String toString()
+	{
+		return "("+cd.getEntity()+" "+cd.getProperty()+" "+cd.getValue()+" "+belief+")";
+	}
+}
@@ -0,0 +1,94 @@
+package leaf.causes;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import leaf.context.ContextData;
+import leaf.tools.CompressedBitmap;
+
+/**
+ * A conjunction of context data observed together in the history of a task (candidate cause made of several context data),
+ * with the situations where they were all observed, see Apriori.
+ * @author Nathan Ramoly
+ *
+ */
+public class Conjunction {
+
+	//** Attributes **//
+
+	/**
+	 * Context data, by increasing id
+	 */
+	private final List<ContextData> cds;
+
+	/**
+	 * Failing and successful situations where all the context data were observed
+	 */
+	private final CompressedBitmap failSituations;
+
+	private final CompressedBitmap successSituations;
+
+	private final int nbFail;
+
+	private final int nbSuccess;
+
+
+	//** Methods **//
+
+	Conjunction(List<ContextData> cds, CompressedBitmap failSituations, CompressedBitmap successSituations)
+	{
+		this.cds = Collections.unmodifiableList(cds);
+		this.failSituations = failSituations;
+		this.successSituations = successSituations;
+		this.nbFail = failSituations.cardinality();
+		this.nbSuccess = successSituations.cardinality();
+	}
+
+	/**
+	 * Conjunction with one more context data (of higher id than the current ones)
+	 */
+	Conjunction extend(Conjunction single)
+	{
+		ArrayList<ContextData> extended = new ArrayList<ContextData>(cds);
+		extended.addAll(single.cds);
+
+		return new Conjunction(extended, failSituations.and(single.failSituations), successSituations.and(single.successSituations));
+	}
+
+	/**
+	 * Score as for a single context data (see Extraction.computeScore()): +1 for failing situation, -1 for successful,
+	 * divided by the number of situations.
+	 */
+	public double getScore()
+	{
+		return (double)(nbFail - nbSuccess)/(double)(nbFail + nbSuccess);
+	}
+
+	public List<ContextData> getContextData() {
+		return cds;
+	}
+
+	/**
+	 * Number of failing situations where all the context data were observed
+	 */
+	public int getNbFail() {
+		return nbFail;
+	}
+
+	/**
+	 * Number of successful situations where all the context data were observed
+	 */
+	public int getNbSuccess() {
+		return nbSuccess;
+	}
+
+	CompressedBitmap getFailSituations() {
+		return failSituations;
+	}
+
+	public String toString()
+	{
+		return cds+" fail="+nbFail+" success="+nbSuccess;
+	}
+}
@@ -2,11 +2,16 @@ package leaf.causes;
 
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.LinkedHashSet;
 import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
 
 import leaf.context.ContextData;
-import leaf.ontology.Ontology;
+import leaf.context.ContextDataCounter;
 import leaf.tools.DataBaseManager;
+import leaf.tools.HistoryCache;
+import leaf.tools.HistoryIndex;
 import leaf.tools.LeafLog;
 
 /**
@@ -45,6 +50,16 @@ public class Extraction {
 	 */
 	public static final int NUMPREVSITRISK = 10;
 	
+	/**
+	 * Number of threads parsing the history files
+	 */
+	public static final int HISTORYTHREADS = Runtime.getRuntime().availableProcessors();
+	
+	/**
+	 * Pool parsing the history files, lazily created by getHistoryLoader()
+	 */
+	private static ExecutorService historyLoader = null;
+	
 	
 	/** Method **/
 	
@@ -68,17 +83,18 @@ public class Extraction {
 			LeafLog.w("Extraction", "Not enough failing situations yet !");
 			return null;
 		}
+		//Parsing the history not counted yet meanwhile
+		HistoryIndex index = HistoryIndex.getInstance();
+		if(!index.isCounted(task))
+		{ prefetchHistory(task); }
+		
 		//Getting the path to last failing ontology
 		String path = dbm.getLastFailSitOntoPath(task);
 		LeafLog.i("Extraction", "Selected file: "+path);
 		
-		//Load ontology
-		Ontology lastFailOnto = new Ontology(path);		
-		
-		
 		//Step 1 - extract context data from the last failure of this task.
 		
-		ArrayList<ContextData> lastCD = lastFailOnto.getContextData();
+		ArrayList<ContextData> lastCD = HistoryCache.getInstance().get(path);
 		
 		//Debug
 		for(ContextData cd: lastCD)
@@ -89,7 +105,7 @@ public class Extraction {
 		
 		//Step 2 - Extract context data with belief and those without
 		//Note: without belief = cold start
-		ArrayList<ContextData> cdBelief = new ArrayList<ContextData>();
+		ArrayList<Cause> cdBelief = new ArrayList<Cause>();
 		ArrayList<ContextData> cdNoBelief = new ArrayList<ContextData>();
 		
 		getCDBelief(task, dbm, lastCD, cdBelief, cdNoBelief);
@@ -104,8 +120,11 @@ public class Extraction {
 		//Step 3 - For those that are unknown, order them by reccurence and absence in succesful situation
 		//Score for each: +1 for failing situation, -1 for succesful. Thus, 0 is neutral. (score != belief)
 		//The score only allows to select what are the most probable failing data.
-		ArrayList<ContextData> successCdHistory = getObservedCDHistory(task, dbm, true);
-		ArrayList<ContextData> failCdHistory = getObservedCDHistory(task, dbm, false);
+		//Occurrences are counted in database as situations are saved (one lookup per context data)
+		index.countHistory(task);
+		ContextDataCounter successCdHistory = new ContextDataCounter();
+		ContextDataCounter failCdHistory = new ContextDataCounter();
+		dbm.getObservationCounts(task, cdNoBelief, successCdHistory, failCdHistory);
 		
 		LeafLog.d("Extraction", "CD in success history:");
 		LeafLog.d("Extraction", successCdHistory.toString());
@@ -114,6 +133,14 @@ public class Extraction {
 		
 		HashMap<ContextData, Double> scores =  computeScore(cdNoBelief, successCdHistory, failCdHistory);
 		
+		//Failures are often caused by several context data at once: the members of a conjunction explaining the failures
+		//better than each of them get its score (questions remain about single context data)
+		ArrayList<Conjunction> conjunctions = Apriori.mine(task, lastCD);
+		boostConjunctions(scores, conjunctions);
+		
+		LeafLog.d("Extraction", "Conjunctions:");
+		LeafLog.d("Extraction", conjunctions.toString());
+		
 		LeafLog.d("Extraction", "Scores:");
 		LeafLog.d("Extraction", scores.toString());
 		
@@ -141,88 +168,89 @@ public class Extraction {
 	}
 	
 
-	private static void getCDBelief(String task, DataBaseManager dbm, ArrayList<ContextData> cds, ArrayList<ContextData> retListwb, ArrayList<ContextData> retListwob)
+	private static void getCDBelief(String task, DataBaseManager dbm, ArrayList<ContextData> cds, ArrayList<Cause> retListwb, ArrayList<ContextData> retListwob)
 	{
 		//Get all stored causes
-		ArrayList<ContextData> causes = dbm.getCD(task);
+		HashMap<ContextData, Cause> causes = dbm.getCauses(task);
 		
-		//Go through all causes and current data (possible cause)
+		//Go through current data (possible cause)
 		//Return those who are in cds and that were observed previously
 		for(ContextData cd: cds)
 		{
-			boolean prevObs = false;
-			
-			//Go through observed cause and check if the current context data was observed
-			for(ContextData cause: causes)
-			{
-				if(cause.equals(cd))
-				{ 
-					prevObs = true; //Found cause
-					//Add observed cause (thus with belief) in list of cd with belief
-					retListwb.add(cause);
-					break;
-				}				
-			}	
+			Cause cause = causes.get(cd);
 			
+			//Add observed cause (thus with belief) in list of cd with belief
+			if(cause != null)
+			{ retListwb.add(cause); }
 			//If not observed, add to list of cd with no belief
-			if(!prevObs)
+			else
 			{ retListwob.add(cd); }
 		}		
 	}
 	
 	
-	private static ArrayList<ContextData> getObservedCDHistory(String task, DataBaseManager dbm, boolean success)
+	/**
+	 * Start parsing, in background, the situations of the history of a task that are not cached yet (see HistoryCache):
+	 * the last failing situation first, then those not counted in database yet (see HistoryIndex.countHistory()).
+	 * Called when a failure is reported, so the extraction finds them already parsed.
+	 */
+	public static void prefetchHistory(String task)
 	{
-		ArrayList<ContextData> cdHistorySuccess = new ArrayList<ContextData>();
-		
-		ArrayList<String> paths = dbm.getOntoPaths(task, success);
+		DataBaseManager dbm = DataBaseManager.getInstance();
+		final HistoryCache cache = HistoryCache.getInstance();
 		
-		LeafLog.i("Extraction", "Reading all context in history for task "+task+". High number of disk IO !");
+		LinkedHashSet<String> paths = new LinkedHashSet<String>();
+		String lastPath = dbm.getLastFailSitOntoPath(task);
+		if(!lastPath.isEmpty())
+		{ paths.add(lastPath); }
+		paths.addAll(dbm.getUncountedOntoPaths(task, false).values());
+		paths.addAll(dbm.getUncountedOntoPaths(task, true).values());
 		
-		//Go through all onto and get observed task
-		//A same context data can be observed and stored multiple times in the list
-		//The occurrence of a given cd will then be counted
-		//High amount of disk access !
-		for(String path: paths)
+		int nbPrefetch = 0;
+		for(final String path: paths)
 		{
-			//LeafLog.d("Extraction", "Loading ontology: "+path);
-			
-			//Loading ontology
-			Ontology onto = new Ontology(path);
-			
-			cdHistorySuccess.addAll( onto.getContextData() );
+			if(!cache.contains(path))
+			{
+				getHistoryLoader().execute(new Runnable() {
+					@Override
+					public void run() {
+						cache.get(path);
+					}
+				});
+				nbPrefetch++;
+			}
 		}
 		
-		return cdHistorySuccess;
+		LeafLog.i("Extraction", "Prefetching "+nbPrefetch+" situations of history for task "+task);
+	}
+	
+	/**
+	 * Get the pool parsing the history files (HISTORYTHREADS threads)
+	 */
+	private static synchronized ExecutorService getHistoryLoader()
+	{
+		if(historyLoader == null)
+		{ historyLoader = new ForkJoinPool(HISTORYTHREADS); }
+		
+		return historyLoader;
 	}
 	
 	/**
 	 * 
 	 * @param ucd unknown context data (possible cause)
-	 * @param fhcd fail history cd
-	 * @param shcd success history cd
+	 * @param shcd success history counts
+	 * @param fhcd fail history counts
 	 */
-	private static HashMap<ContextData, Double> computeScore(ArrayList<ContextData> ucd, ArrayList<ContextData> shcd, ArrayList<ContextData> fhcd)
+	private static HashMap<ContextData, Double> computeScore(ArrayList<ContextData> ucd, ContextDataCounter shcd, ContextDataCounter fhcd)
 	{
 		HashMap<ContextData, Double> scores = new HashMap<ContextData, Double>();
 		
 		//For each currently observed unknown context data...
 		for(ContextData cd: ucd)
 		{
-			Double score = 0.0;
 			//count occurence in failure and success history
-			Double tot = 0.0;
-			
-			for(ContextData fcd: fhcd)
-			{
-				if(cd.equals(fcd))
-				{score++; tot++; }
-			}
-			for(ContextData scd: shcd)
-			{
-				if(cd.equals(scd))
-				{score--; tot++; }
-			}
+			Double score = (double)(fhcd.get(cd) - shcd.get(cd));
+			Double tot = (double)(fhcd.get(cd) + shcd.get(cd));
 			
 			scores.put(cd, score/tot);
 		}
@@ -231,6 +259,24 @@ public class Extraction {
 	}
 	
 	
+	/**
+	 * Raise the score of the members of the conjunctions to the score of the conjunction
+	 * @param scores Scores of the unknown context data (possible causes)
+	 */
+	private static void boostConjunctions(HashMap<ContextData, Double> scores, ArrayList<Conjunction> conjunctions)
+	{
+		for(Conjunction conj: conjunctions)
+		{
+			for(ContextData cd: conj.getContextData())
+			{
+				Double score = scores.get(cd);
+				if(score != null && score < conj.getScore())
+				{ scores.put(cd, conj.getScore()); }
+			}
+		}
+	}
+	
+	
 	/**
 	 * Evaluate the 'risk'
 	 * In that case risk mean the importance of having a good guessing
@@ -258,9 +304,9 @@ public class Extraction {
 		
 		DataBaseManager dbm = DataBaseManager.getInstance();
 		
-		//Load all stored context data for this task
-		ArrayList<ContextData> storedCds = dbm.getCD(task);
-		LeafLog.d("Feedback", storedCds.toString());
+		//Load all stored causes for this task
+		HashMap<ContextData, Cause> storedCauses = dbm.getCauses(task);
+		LeafLog.d("Feedback", storedCauses.values().toString());
 				
 		for (Map.Entry<ContextData, Double> cdRew : rewards.entrySet()) 
 		{
@@ -268,19 +314,17 @@ public class Extraction {
 		    Double reward = cdRew.getValue();
 		    LeafLog.d("Feedback", "Checking feedback for "+cd);		    
 		    
-		    //If known, update cd
-		    if(storedCds.contains(cd))
+		    Cause cause = storedCauses.get(cd);
+		    
+		    //If known, update cause
+		    if(cause != null)
 		    {
-		    	ContextData oldCd = storedCds.get(storedCds.indexOf(cd));
-		    	//Computing new belief:
-		    	Double newB = (oldCd.getBelief()*oldCd.getNbrFeedback() + reward)/(oldCd.getNbrFeedback()+1.0);
-		    	
-		    	cd.setBelief(newB);
-		    	cd.setNbrFeedback(oldCd.getNbrFeedback()+1);
+		    	//Computing new belief
+		    	cause.addFeedback(reward);
 		    	
 		    	//Update
-		    	LeafLog.i("Feedback", "Updating "+cd+" belief in database");
-		    	dbm.updateContextData(task, cd);
+		    	LeafLog.i("Feedback", "Updating "+cause+" belief in database");
+		    	dbm.updateCause(task, cause);
 		    }
 		    //Insert new entry
 		    else
@@ -288,10 +332,9 @@ public class Extraction {
 		    	//Insert only if entry is a possible failure !
 		    	if(reward > 0)
 		    	{
-			    	cd.setBelief(reward);
-			    	cd.setNbrFeedback(1);
-			    	LeafLog.i("Feedback", "Adding "+cd+" belief to database");
-			    	dbm.insertContextData(task, cd);
+		    		cause = new Cause(cd, reward, 1);
+			    	LeafLog.i("Feedback", "Adding "+cause+" belief to database");
+			    	dbm.insertCause(task, cause);
 		    	}
 		    	else
 		    	{
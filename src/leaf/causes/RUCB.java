@@ -44,7 +44,7 @@ public class RUCB {
 	 * @param T Number of total fail situation for this task (use for selecting best context data)
 	 * @return
 	 */
-	public static ArrayList<ContextData> selection( Double risk, ArrayList<ContextData> oldCauses, ArrayList<ContextData> newCauses, HashMap<ContextData, Double> scoreNewCauses, Integer N, Integer T)
+	public static ArrayList<ContextData> selection( Double risk, ArrayList<Cause> oldCauses, ArrayList<ContextData> newCauses, HashMap<ContextData, Double> scoreNewCauses, Integer N, Integer T)
 	{
 		ArrayList<ContextData> ret = new ArrayList<ContextData>();
 		
@@ -63,10 +63,28 @@ public class RUCB {
 		return ret;
 	}
 	
-	private static ArrayList<ContextData> EUCB( Double E, ArrayList<ContextData> oldCauses, ArrayList<ContextData> newCauses, HashMap<ContextData, Double> scoreNewCauses, Integer N, Integer T)
+	/**
+	 * Each arm is scored once: D for the old causes (only the N best are kept, see bestCauses()),
+	 * and the score of the new causes, in arrays.
+	 * Exploiting picks the old causes by decreasing D, exploring picks a random new cause with a score above 0.5.
+	 */
+	private static ArrayList<ContextData> EUCB( Double E, ArrayList<Cause> oldCauses, ArrayList<ContextData> newCauses, HashMap<ContextData, Double> scoreNewCauses, Integer N, Integer T)
 	{
 		ArrayList<ContextData> ret = new ArrayList<ContextData>();
 		
+		//Old causes to exploit, by decreasing D
+		int[] exploit = bestCauses(oldCauses, N, T);
+		int nbExploited = 0;
+		
+		//Scores of the new causes, and those already selected
+		double[] scores = new double[newCauses.size()];
+		for(int j=0; j<scores.length; j++)
+		{
+			Double score = scoreNewCauses.get(newCauses.get(j));
+			scores[j] = score != null ? score : 0.0;
+		}
+		boolean[] explored = new boolean[newCauses.size()];
+		
 		//Selecting  N data
 		for(int i=0; i<N; i++)
 		{
@@ -76,24 +94,10 @@ public class RUCB {
 			if(q>E) //Exploit
 			{
 				LeafLog.m("RUCB","Exploit for iteration "+i);
-				//Go through each old causes and select the with the highest d value
-				ContextData curSelcd = null;
-				Double curD = 0.0;
-				for(ContextData oc: oldCauses)
-				{
-					Double D = oc.getBelief()*Math.sqrt( Math.log(T)/oc.getNbrFeedback() );
-					
-					//If max and not already selected
-					if(D>=curD && !ret.contains(oc))
-					{
-						curD = D;
-						curSelcd = oc;
-					}
-				}			
 				
-				//Adding it to return list
-				if(curSelcd != null)
-				{ ret.add(curSelcd); }
+				//Next old cause with the highest d value
+				if(nbExploited < exploit.length)
+				{ ret.add(oldCauses.get(exploit[nbExploited++]).getContextData()); }
 				//Go to explore and pick a context data here
 				else
 				{ noExploitAvailable = true; }
@@ -103,49 +107,16 @@ public class RUCB {
 			{
 				LeafLog.m("RUCB","Explore for iteration "+i);
 				
+				//Select a random value with score > 0.5 and not in list
+				int selected = sample(scores, explored);
 				
-				//Select the newly observed data with the highest score
-//				ContextData curSelcd = null;
-//				Integer maxScore = 0;
-//				
-//				for(ContextData nc: newCauses)
-//				{
-//					//If higher score and not already selected...
-//					if(scoreNewCauses.get(nc) > maxScore && !ret.contains(nc))
-//					{
-//						curSelcd = nc;
-//						maxScore = scoreNewCauses.get(nc);
-//					}
-//				}	
-//				
-//				//Adding to return list
-//				if(curSelcd != null)
-//				{ ret.add(curSelcd); }
-//				else
-//				{ LeafLog.i("RUCB","No further context data to be checked in exploration");	}
-				
-				//Select a random value
-				//Create list with score > 0 and not in list
-				ArrayList<ContextData> filteredCauses = new ArrayList<ContextData>();
-				
-				for(ContextData nc: newCauses)
-				{
-					if(scoreNewCauses.get(nc) > 0.5  && !ret.contains(nc))
-					{
-						filteredCauses.add(nc);
-					}
-				}
-				
-				if(filteredCauses.size() <= 0)
+				if(selected < 0)
 				{LeafLog.i("RUCB","No further context data to be checked in exploration");	}
 				else
 				{
-					int randVal = (int)( (Math.random())*filteredCauses.size());
-					if(randVal == filteredCauses.size())
-					{randVal--;}
-					ret.add(filteredCauses.get(randVal));
+					explored[selected] = true;
+					ret.add(newCauses.get(selected));
 				}
-
 			}
 		}
 		
@@ -153,4 +124,118 @@ public class RUCB {
 		
 		return ret;
 	}
+	
+	/**
+	 * Select the N old causes with the highest D = belief*sqrt(log(T)/nbrFeedback) (ties: the last one first),
+	 * with a bounded heap of the N best ones.
+	 * @return Indexes of the causes, by decreasing D
+	 */
+	private static int[] bestCauses(ArrayList<Cause> causes, int N, int T)
+	{
+		double logT = Math.log(T);
+		double[] d = new double[causes.size()];
+		
+		//Min-heap: the worst of the best causes at the top
+		int[] heap = new int[Math.min(N, causes.size())];
+		int size = 0;
+		
+		for(int j=0; j<d.length; j++)
+		{
+			Cause oc = causes.get(j);
+			d[j] = oc.getBelief()*Math.sqrt( logT/oc.getNbrFeedback() );
+			
+			//Not a number: never selected
+			if(!(d[j] >= 0))
+			{ continue; }
+			
+			if(size < heap.length)
+			{
+				heap[size] = j;
+				siftUp(heap, size, d);
+				size++;
+			}
+			else if(heap.length > 0 && better(j, heap[0], d))
+			{
+				heap[0] = j;
+				siftDown(heap, size, d);
+			}
+		}
+		
+		//Removing the worst first
+		int[] ret = new int[size];
+		for(int k=size-1; k>=0; k--)
+		{
+			ret[k] = heap[0];
+			size--;
+			heap[0] = heap[size];
+			siftDown(heap, size, d);
+		}
+		
+		return ret;
+	}
+	
+	/**
+	 * True if cause i has a higher D than cause j (the last one if equal)
+	 */
+	private static boolean better(int i, int j, double[] d)
+	{
+		return d[i] > d[j] || (d[i] == d[j] && i > j);
+	}
+	
+	private static void siftUp(int[] heap, int pos, double[] d)
+	{
+		while(pos > 0)
+		{
+			int parent = (pos-1)/2;
+			if(!better(heap[parent], heap[pos], d))
+			{ break; }
+			
+			int tmp = heap[parent];
+			heap[parent] = heap[pos];
+			heap[pos] = tmp;
+			pos = parent;
+		}
+	}
+	
+	private static void siftDown(int[] heap, int size, double[] d)
+	{
+		int pos = 0;
+		while(2*pos+1 < size)
+		{
+			int child = 2*pos+1;
+			if(child+1 < size && better(heap[child], heap[child+1], d))
+			{ child++; }
+			
+			if(!better(heap[pos], heap[child], d))
+			{ break; }
+			
+			int tmp = heap[pos];
+			heap[pos] = heap[child];
+			heap[child] = tmp;
+			pos = child;
+		}
+	}
+	
+	/**
+	 * Pick a random new cause with a score above 0.5, not selected yet (reservoir sampling, in one pass)
+	 * @return Its index, -1 if none
+	 */
+	private static int sample(double[] scores, boolean[] explored)
+	{
+		int selected = -1;
+		int nbCandidates = 0;
+		
+		for(int j=0; j<scores.length; j++)
+		{
+			if(scores[j] > 0.5 && !explored[j])
+			{
+				nbCandidates++;
+				//Replaces the current selection with probability 1/nbCandidates
+				if(Math.random()*nbCandidates < 1)
+				{ selected = j; }
+			}
+		}
+		
+		return selected;
+	}
 }
@@ -12,14 +12,15 @@ import leaf.context.ContextData;
  */
 public class RandomArmedBandit {
 	
-	public static ArrayList<ContextData> selection( Double risk, ArrayList<ContextData> oldCauses, ArrayList<ContextData> newCauses, HashMap<ContextData, Integer> scoreNewCauses, Integer N, Integer T)
+	public static ArrayList<ContextData> selection( Double risk, ArrayList<Cause> oldCauses, ArrayList<ContextData> newCauses, HashMap<ContextData, Integer> scoreNewCauses, Integer N, Integer T)
 	{
 		ArrayList<ContextData> ret = new ArrayList<ContextData>();
 		
 		ArrayList<ContextData> allCauses = new	ArrayList<ContextData>();
 		
 		allCauses.addAll(newCauses);
-		allCauses.addAll(oldCauses);
+		for(Cause oc: oldCauses)
+		{ allCauses.add(oc.getContextData()); }
 		
 		for(int i=0; i<N; i++)
 		{
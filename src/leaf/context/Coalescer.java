@@ -0,0 +1,243 @@
+package leaf.context;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+
+/**
+ * Coalescing stage of the context ingestion.
+ * Sensors resend positions or temperatures much faster than the reasoner can use them: within a window,
+ * only the latest value of each (entity, property) is kept, so update storms turn into a bounded write rate.
+ * Only the given properties are coalesced (single valued ones), others (e.g. contains) are all kept.
+ * Used by the model writer thread only: not thread safe, except for the window setting and counters.
+ * @author Nathan Ramoly
+ *
+ */
+public class Coalescer {
+
+	/** Attributes **/
+
+	/**
+	 * Initial size of the index (power of 2)
+	 */
+	private static final int INITSIZE = 64;
+
+	/**
+	 * Duration of a window (ms), 0 to apply each frame as is
+	 */
+	private volatile long window;
+
+	/**
+	 * Properties whose values supersede each others
+	 */
+	private HashSet<String> properties;
+
+	/**
+	 * Triples of the current window, in order of first arrival
+	 */
+	private ContextFrame frame;
+
+	/**
+	 * Index (entity, property, raw) -> position in frame + 1 (0 = empty slot), open addressing
+	 */
+	private int[] index;
+
+	/**
+	 * Start of the current window (ms)
+	 */
+	private long windowStart;
+
+	/**
+	 * Counters
+	 */
+	private volatile long nbReceived;
+
+	private volatile long nbSuperseded;
+
+	private volatile long nbApplied;
+
+	private volatile long nbWindows;
+
+
+	/** Methods **/
+
+	/**
+	 * @param window Duration of a window (ms)
+	 * @param properties Properties to coalesce
+	 */
+	public Coalescer(long window, Collection<String> properties)
+	{
+		this.window = window;
+		this.properties = new HashSet<String>(properties);
+		frame = new ContextFrame();
+		index = new int[INITSIZE];
+		windowStart = 0;
+		nbReceived = 0;
+		nbSuperseded = 0;
+		nbApplied = 0;
+		nbWindows = 0;
+	}
+
+	/**
+	 * Add the triples of a frame to the current window.
+	 * A triple replaces the value of a previous one with the same entity and property.
+	 */
+	public void add(ContextFrame in)
+	{
+		if(frame.isEmpty())
+		{ windowStart = System.currentTimeMillis(); }
+
+		for(int i=0; i<in.size(); i++)
+		{
+			String entity = in.getEntity(i);
+			String property = in.getProperty(i);
+			boolean raw = in.isRaw(i);
+
+			nbReceived++;
+
+			if(!properties.contains(property))
+			{
+				frame.add(entity, property, in.getValue(i), raw);
+				continue;
+			}
+
+			int slot = find(entity, property, raw);
+			if(index[slot] != 0)
+			{
+				frame.setValue(index[slot]-1, in.getValue(i));
+				nbSuperseded++;
+			}
+			else
+			{
+				frame.add(entity, property, in.getValue(i), raw);
+				index[slot] = frame.size();
+
+				//Keep the index at most half full
+				if(frame.size()*2 > index.length)
+				{ rebuildIndex(index.length*2); }
+			}
+		}
+	}
+
+	/**
+	 * Slot of the index for this key: either the one holding it or the empty one where to put it
+	 */
+	private int find(String entity, String property, boolean raw)
+	{
+		int hash = 31*entity.hashCode() + property.hashCode();
+		if(raw)
+		{ hash = ~hash; }
+
+		int mask = index.length-1;
+		int slot = (hash ^ (hash >>> 16)) & mask;
+
+		while(index[slot] != 0)
+		{
+			int pos = index[slot]-1;
+			if(frame.isRaw(pos) == raw && frame.getEntity(pos).equals(entity) && frame.getProperty(pos).equals(property))
+			{ return slot; }
+			slot = (slot+1) & mask;
+		}
+
+		return slot;
+	}
+
+	private void rebuildIndex(int size)
+	{
+		index = new int[size];
+
+		for(int pos=0; pos<frame.size(); pos++)
+		{
+			if(properties.contains(frame.getProperty(pos)))
+			{
+				index[find(frame.getEntity(pos), frame.getProperty(pos), frame.isRaw(pos))] = pos+1;
+			}
+		}
+	}
+
+	/**
+	 * True if the current window is over and its triples have to be applied
+	 */
+	public boolean isDue(long now)
+	{
+		return !frame.isEmpty() && now - windowStart >= window;
+	}
+
+	/**
+	 * Time left (ms) before the end of the current window
+	 */
+	public long getTimeLeft(long now)
+	{
+		return Math.max(0, windowStart + window - now);
+	}
+
+	public boolean isEmpty()
+	{
+		return frame.isEmpty();
+	}
+
+	/**
+	 * Triples of the current window (to apply before calling clear())
+	 */
+	public ContextFrame getFrame()
+	{
+		return frame;
+	}
+
+	/**
+	 * End the current window
+	 */
+	public void clear()
+	{
+		nbApplied += frame.size();
+		nbWindows++;
+
+		frame.clear();
+		Arrays.fill(index, 0);
+	}
+
+	public long getWindow() {
+		return window;
+	}
+
+	/**
+	 * Set the duration of the window (ms), 0 to disable coalescing
+	 */
+	public void setWindow(long window) {
+		this.window = window;
+	}
+
+	/**
+	 * Number of triples received
+	 */
+	public long getNbReceived() {
+		return nbReceived;
+	}
+
+	/**
+	 * Number of triples replaced by a newer value before being applied
+	 */
+	public long getNbSuperseded() {
+		return nbSuperseded;
+	}
+
+	/**
+	 * Number of triples applied to the situation
+	 */
+	public long getNbApplied() {
+		return nbApplied;
+	}
+
+	/**
+	 * Number of windows applied
+	 */
+	public long getNbWindows() {
+		return nbWindows;
+	}
+
+	public String toString()
+	{
+		return "Coalescer("+window+"ms) received="+nbReceived+" superseded="+nbSuperseded
+				+" applied="+nbApplied+" windows="+nbWindows;
+	}
+}
@@ -1,115 +1,236 @@
 package leaf.context;
 
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
 /**
  * A context data is a triple about an observation of the environment.
  * It carries a triple as: name of entity, property, value (or name of target entity)
+ *
+ * Context data are immutable and interned: they are obtained with of() that returns the single instance of each triple,
+ * identified by a small id (0, 1, 2...). Thus, they are cheap hash keys (hashCode is the id) and can index arrays.
+ * Interned context data are weakly referenced: a context data no longer used is reclaimed by the GC, and its id is reused.
+ * Structures indexed by id must then keep the context data they index (see ContextDataCounter).
+ * Entity, property and value are dictionary encoded (up to MAXSYMBOLS symbols) to pack the key of a triple in a long,
+ * the triples having a symbol out of the dictionary are keyed by their strings.
+ * Interning is thread safe and lock free.
+ * The belief of a cause is kept apart, see leaf.causes.Cause.
  * @author Nathan Ramoly
  *
  */
-public class ContextData {
+public final class ContextData {
 
 	//** Attributes **//
-	
-	String entity;
-	
-	String property;
-	
-	String value;
-	
-	Double belief;
-	
-	Integer nbrFeedback;
-	
-	
+
+	/**
+	 * Maximum number of symbols (entity, property and value ids are packed on 21 bits each)
+	 */
+	private static final int MAXSYMBOLS = 1 << 21;
+
+	/**
+	 * Dictionary of the symbols: string -> id.
+	 * It is bounded (MAXSYMBOLS) and never evicted: a symbol out of the dictionary stays out.
+	 */
+	private static final ConcurrentHashMap<String, Integer> symbols = new ConcurrentHashMap<String, Integer>();
+
+	/**
+	 * Interned context data, by packed symbol ids (Long) or by strings (List) if a symbol is out of the dictionary
+	 */
+	private static final ConcurrentHashMap<Object, Ref> interned = new ConcurrentHashMap<Object, Ref>();
+
+	/**
+	 * Reclaimed context data
+	 */
+	private static final ReferenceQueue<ContextData> reclaimed = new ReferenceQueue<ContextData>();
+
+	/**
+	 * Ids of the reclaimed context data, to be reused
+	 */
+	private static final ConcurrentLinkedQueue<Integer> freeIds = new ConcurrentLinkedQueue<Integer>();
+
+	private static final AtomicInteger nbIds = new AtomicInteger();
+
+	private final int id;
+
+	private final String entity;
+
+	private final String property;
+
+	private final String value;
+
+
+	/**
+	 * Weak reference to an interned context data, with what is needed to clean up once it is reclaimed
+	 */
+	private static final class Ref extends WeakReference<ContextData> {
+
+		final Object key;
+
+		final int id;
+
+		Ref(ContextData cd, Object key)
+		{
+			super(cd, reclaimed);
+			this.key = key;
+			this.id = cd.id;
+		}
+	}
+
+
 	//** Methods **//
-	
-	public ContextData(String entity, String property, String value)
+
+	private ContextData(int id, String entity, String property, String value)
 	{
+		this.id = id;
 		this.entity = entity;
 		this.property = property;
 		this.value = value;
-		this.belief = null;
-		this.nbrFeedback = null;
 	}
-	
-	public Integer getNbrFeedback() {
-		return nbrFeedback;
+
+	/**
+	 * Get the context data (entity, property, value), created on first use
+	 */
+	public static ContextData of(String entity, String property, String value)
+	{
+		expunge();
+
+		Object key = key(entity, property, value);
+
+		Ref ref = interned.get(key);
+		ContextData cd = (ref == null ? null : ref.get());
+
+		while(cd == null)
+		{
+			ContextData created = new ContextData(newId(), entity, property, value);
+			Ref newRef = new Ref(created, key);
+
+			boolean set = (ref == null ? interned.putIfAbsent(key, newRef) == null : interned.replace(key, ref, newRef));
+			if(set)
+			{ return created; }
+
+			//Interned by another thread meanwhile: the id was not published
+			freeIds.add(created.id);
+			ref = interned.get(key);
+			cd = (ref == null ? null : ref.get());
+		}
+
+		return cd;
 	}
 
-	public void setNbrFeedback(Integer nbrFeedback) {
-		this.nbrFeedback = nbrFeedback;
+	/**
+	 * Key of a triple: packed symbol ids, or the strings if one of them is out of the dictionary
+	 */
+	private static Object key(String entity, String property, String value)
+	{
+		int e = symbol(entity);
+		int p = symbol(property);
+		int v = symbol(value);
+
+		if(e < 0 || p < 0 || v < 0)
+		{ return Arrays.asList(entity, property, value); }
+
+		return ((long)e << 42) | ((long)p << 21) | v;
 	}
 
-	public ContextData(String entity, String property, String value, Double belief, Integer nbrFeedback)
+	/**
+	 * Id of a symbol, -1 if the dictionary is full
+	 */
+	private static int symbol(String str)
 	{
-		this.entity = entity;
-		this.property = property;
-		this.value = value;
-		this.belief = belief;
-		this.nbrFeedback = nbrFeedback;
+		Integer id = symbols.get(str);
+		if(id == null)
+		{ return newSymbol(str); }
+		return id;
 	}
 
-	public Double getBelief() {
-		return belief;
+	/**
+	 * Add a symbol to the dictionary, -1 if it is full.
+	 * Under lock: a symbol can't be added by a thread while another one finds the dictionary full (and uses the other key).
+	 */
+	private static synchronized int newSymbol(String str)
+	{
+		Integer id = symbols.get(str);
+		if(id != null)
+		{ return id; }
+
+		if(symbols.size() >= MAXSYMBOLS)
+		{ return -1; }
+
+		id = symbols.size();
+		symbols.put(str, id);
+		return id;
 	}
 
-	public void setBelief(Double belief) {
-		this.belief = belief;
+	/**
+	 * A free id, reused from a reclaimed context data if any
+	 */
+	private static int newId()
+	{
+		Integer id = freeIds.poll();
+		if(id == null)
+		{ return nbIds.getAndIncrement(); }
+		return id;
 	}
 
-	public String getEntity() {
-		return entity;
+	/**
+	 * Remove the reclaimed context data and free their ids
+	 */
+	private static void expunge()
+	{
+		Ref ref;
+		while((ref = (Ref) reclaimed.poll()) != null)
+		{
+			interned.remove(ref.key, ref);
+			freeIds.add(ref.id);
+		}
 	}
 
-	public void setEntity(String entity) {
-		this.entity = entity;
+	/**
+	 * Number of context data currently interned
+	 */
+	public static int getNbContextData()
+	{
+		expunge();
+		return interned.size();
 	}
 
-	public String getProperty() {
-		return property;
+	public int getId() {
+		return id;
 	}
 
-	public void setProperty(String property) {
-		this.property = property;
+	public String getEntity() {
+		return entity;
+	}
+
+	public String getProperty() {
+		return property;
 	}
 
 	public String getValue() {
 		return value;
 	}
 
-	public void setValue(String value) {
-		this.value = value;
-	}
-	
 	public String toString()
 	{
-		if(belief != null)
-		{ return "("+entity+" "+property+" "+value+" "+belief+")"; }
-		else
-		{ return "("+entity+" "+property+" "+value+" 0)"; }	
+		return "("+entity+" "+property+" "+value+")";
 	}
-	
+
+	/**
+	 * Context data are interned: a triple has a single instance
+	 */
 	@Override
 	public boolean equals(Object ob)
 	{
-		if(ob instanceof ContextData)
-		{
-			ContextData cdB = (ContextData)ob;
-			return entity.equals(cdB.getEntity()) && property.equals(cdB.getProperty()) && value.equals(cdB.getValue());
-		}
-		else
-		{ return false; }
+		return this == ob;
 	}
-	
-	
+
 	@Override
 	public int hashCode() {
-		final int prime = 31;
-		int result = 1;
-		result = prime * result + ((belief == null) ? 0 : belief.hashCode());
-		result = prime * result + ((entity == null) ? 0 : entity.hashCode());
-		result = prime * result + ((property == null) ? 0 : property.hashCode());
-		return result;
-	}
-	
+		return id;
+	}
+
 }
@@ -0,0 +1,121 @@
+package leaf.context;
+
+import java.util.Arrays;
+import java.util.Collection;
+
+/**
+ * Number of occurrences of context data (e.g. in the situations of the history).
+ * Counts are kept in an array indexed by the id of the context data (ids are small, see ContextData.of()):
+ * counting and reading a count are array accesses. The counted context data are kept along, so that their ids
+ * are not reused while counted.
+ * Not thread safe.
+ * @author Nathan Ramoly
+ *
+ */
+public class ContextDataCounter {
+
+	/** Attributes **/
+
+	private static final int INITSIZE = 64;
+
+	/**
+	 * Count by context data id
+	 */
+	private int[] counts;
+
+	/**
+	 * Counted context data, by id
+	 */
+	private ContextData[] cds;
+
+
+	/** Methods **/
+
+	public ContextDataCounter()
+	{
+		counts = new int[INITSIZE];
+		cds = new ContextData[INITSIZE];
+	}
+
+	/**
+	 * Add n occurrences of a context data
+	 */
+	public void add(ContextData cd, int n)
+	{
+		int id = cd.getId();
+		if(id >= counts.length)
+		{ grow(Math.max(id+1, counts.length*2)); }
+
+		counts[id] += n;
+		cds[id] = cd;
+	}
+
+	public void add(ContextData cd)
+	{
+		add(cd, 1);
+	}
+
+	/**
+	 * Add one occurrence of each context data
+	 */
+	public void addAll(Collection<ContextData> cds)
+	{
+		for(ContextData cd: cds)
+		{
+			add(cd, 1);
+		}
+	}
+
+	/**
+	 * Add the occurrences counted by another counter
+	 */
+	public void addAll(ContextDataCounter counter)
+	{
+		if(counter.counts.length > counts.length)
+		{ grow(counter.counts.length); }
+
+		for(int id=0; id<counter.counts.length; id++)
+		{
+			if(counter.cds[id] != null)
+			{
+				counts[id] += counter.counts[id];
+				cds[id] = counter.cds[id];
+			}
+		}
+	}
+
+	private void grow(int size)
+	{
+		counts = Arrays.copyOf(counts, size);
+		cds = Arrays.copyOf(cds, size);
+	}
+
+	/**
+	 * Number of occurrences of a context data
+	 */
+	public int get(ContextData cd)
+	{
+		int id = cd.getId();
+		if(id < counts.length)
+		{ return counts[id]; }
+		else
+		{ return 0; }
+	}
+
+	public String toString()
+	{
+		StringBuilder str = new StringBuilder("{");
+
+		for(int id=0; id<counts.length; id++)
+		{
+			if(counts[id] != 0)
+			{
+				if(str.length() > 1)
+				{ str.append(", "); }
+				str.append(cds[id]).append('=').append(counts[id]);
+			}
+		}
+
+		return str.append('}').toString();
+	}
+}
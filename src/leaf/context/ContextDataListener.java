@@ -0,0 +1,18 @@
+package leaf.context;
+
+/**
+ * Receives the changes of the context data of a knowledge store (see Ontology.setContextDataListener()
+ * and ContextStore.setContextDataListener()), as triples are added or retracted.
+ * It is called by the thread updating the store, within the update.
+ * @author Nathan Ramoly
+ *
+ */
+public interface ContextDataListener {
+
+	/**
+	 * A context data appeared in the store, or disappeared from it
+	 * @param cd The context data
+	 * @param added True if it is now observed, false if it is no longer
+	 */
+	public void contextDataChanged(ContextData cd, boolean added);
+}
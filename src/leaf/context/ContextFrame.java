@@ -0,0 +1,165 @@
+package leaf.context;
+
+/**
+ * A frame is a set of context data observed at once (e.g. a full object-pose update from a sensor).
+ * It is applied to the live situation as a whole: readers never see a half-applied frame.
+ * Triples are stored in arrays so a frame can be cleared and refilled without allocation.
+ * @author Nathan Ramoly
+ *
+ */
+public class ContextFrame {
+
+	/** Attributes **/
+	
+	/**
+	 * Initial capacity of a frame
+	 */
+	private static final int INITSIZE = 32;
+	
+	private String[] entities;
+	
+	private String[] properties;
+	
+	private String[] values;
+	
+	/**
+	 * True for a direct triple (with node id, see LiveSituation.addRawData), 
+	 * false for a triple between named entities (see LiveSituation.addData)
+	 */
+	private boolean[] raw;
+	
+	/**
+	 * Number of triples in the frame
+	 */
+	private int size;
+	
+	
+	/** Methods **/
+	
+	public ContextFrame()
+	{
+		entities = new String[INITSIZE];
+		properties = new String[INITSIZE];
+		values = new String[INITSIZE];
+		raw = new boolean[INITSIZE];
+		size = 0;
+	}
+	
+	/**
+	 * Add data between named entities
+	 */
+	public void addData(String entity, String property, String value)
+	{
+		add(entity, property, value, false);
+	}
+	
+	/**
+	 * Add a direct triple (with node id)
+	 */
+	public void addRawData(String entity, String property, String value)
+	{
+		add(entity, property, value, true);
+	}
+	
+	public void add(String entity, String property, String value, boolean isRaw)
+	{
+		if(size == entities.length)
+		{ grow(); }
+		
+		entities[size] = entity;
+		properties[size] = property;
+		values[size] = value;
+		raw[size] = isRaw;
+		size++;
+	}
+	
+	private void grow()
+	{
+		int newSize = entities.length*2;
+		
+		String[] newEntities = new String[newSize];
+		String[] newProperties = new String[newSize];
+		String[] newValues = new String[newSize];
+		boolean[] newRaw = new boolean[newSize];
+		
+		System.arraycopy(entities, 0, newEntities, 0, size);
+		System.arraycopy(properties, 0, newProperties, 0, size);
+		System.arraycopy(values, 0, newValues, 0, size);
+		System.arraycopy(raw, 0, newRaw, 0, size);
+		
+		entities = newEntities;
+		properties = newProperties;
+		values = newValues;
+		raw = newRaw;
+	}
+	
+	public String getEntity(int i) {
+		return entities[i];
+	}
+	
+	public String getProperty(int i) {
+		return properties[i];
+	}
+	
+	public String getValue(int i) {
+		return values[i];
+	}
+	
+	/**
+	 * Replace the value of a triple (e.g. superseded by a newer observation)
+	 */
+	public void setValue(int i, String value) {
+		values[i] = value;
+	}
+	
+	public boolean isRaw(int i) {
+		return raw[i];
+	}
+	
+	/**
+	 * Number of triples in the frame
+	 */
+	public int size()
+	{
+		return size;
+	}
+	
+	public boolean isEmpty()
+	{
+		return size == 0;
+	}
+	
+	/**
+	 * Drop the triples added after the first newSize ones (e.g. a partly decoded datagram)
+	 */
+	public void truncate(int newSize)
+	{
+		for(int i=newSize; i<size; i++)
+		{
+			entities[i] = null;
+			properties[i] = null;
+			values[i] = null;
+		}
+		size = Math.min(size, newSize);
+	}
+	
+	/**
+	 * Empty the frame so it can be reused
+	 */
+	public void clear()
+	{
+		truncate(0);
+	}
+	
+	public String toString()
+	{
+		String ret = "Frame [";
+		for(int i=0; i<size; i++)
+		{
+			if(i > 0)
+			{ ret += ", "; }
+			ret += "("+entities[i]+" "+properties[i]+" "+values[i]+(raw[i]?" raw)":")");
+		}
+		return ret+"]";
+	}
+}
@@ -0,0 +1,597 @@
+package leaf.context;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import leaf.ontology.Ontology;
+
+/**
+ * Compact store of a live situation, an alternative to a full Ontology for the risk hot path.
+ * A situation only holds (entity, property, value) triples: they are kept as int-encoded tuples in primitive arrays
+ * (symbols are dictionary encoded) with two open-addressing indexes:
+ * - SPO: (subject, property, value) -> triple, for membership, insertion and removal
+ * - PS: (property, subject) -> triple, for the upsert of functional properties (a single value per subject)
+ * Entities are stored by local name: the named entities (hasName) are those of the structural ontology.
+ * A value written as leaf:x is a relation to the entity x, any other value is kept as written (raw value).
+ * No rule is applied: the store is exported to an Ontology (see toOntology()) to persist or reason on it.
+ * Not thread safe.
+ * @author Nathan Ramoly
+ *
+ */
+public class ContextStore {
+
+	/** Attributes **/
+
+	/**
+	 * Initial capacity (power of 2)
+	 */
+	private static final int INITSIZE = 64;
+
+	/**
+	 * Prefix of the LEAF entities in values
+	 */
+	private static final String LEAFPREFIX = "leaf:";
+
+	/**
+	 * Local names of the named entities, lazily loaded by getNamedEntities()
+	 */
+	private static HashSet<String> namedEntities = null;
+
+	/**
+	 * Named entities: name -> local name
+	 */
+	private final Map<String, String> names;
+
+	/**
+	 * Functional properties
+	 */
+	private final Set<String> functional;
+
+	/**
+	 * Dictionary: symbol -> id and id -> symbol
+	 */
+	private HashMap<String, Integer> symbolIds;
+
+	private ArrayList<String> symbols;
+
+	/**
+	 * Symbols that are functional properties
+	 */
+	private BitSet functionalSymbols;
+
+	/**
+	 * Triples, by position
+	 */
+	private int[] subjects;
+
+	private int[] properties;
+
+	private int[] values;
+
+	private boolean[] raws;
+
+	private int size;
+
+	/**
+	 * Indexes: position + 1 (0 = empty slot)
+	 */
+	private int[] spoIndex;
+
+	private int[] psIndex;
+
+	/**
+	 * Modification stamp, incremented once per update (or per frame)
+	 */
+	private long version;
+
+	/**
+	 * Last extracted context data, valid as long as contextDataVersion is the current version
+	 */
+	private ArrayList<ContextData> contextData;
+
+	private long contextDataVersion;
+
+	/**
+	 * Receives the changes of the context data (null if none), see setContextDataListener()
+	 */
+	private ContextDataListener listener;
+
+
+	/** Methods **/
+
+	/**
+	 * Store holding the context data of the structural ontology
+	 */
+	public ContextStore()
+	{
+		names = Ontology.getBaseNames();
+		functional = Ontology.getFunctionalProperties();
+		clearSymbols();
+		subjects = new int[INITSIZE];
+		properties = new int[INITSIZE];
+		values = new int[INITSIZE];
+		raws = new boolean[INITSIZE];
+		size = 0;
+		spoIndex = new int[2*INITSIZE];
+		psIndex = new int[2*INITSIZE];
+		contextData = null;
+		contextDataVersion = -1;
+		listener = null;
+
+		for(ContextData cd: Ontology.getBaseContextData())
+		{
+			insert(cd.getEntity(), cd.getProperty(), cd.getValue(), false);
+		}
+		version = 0;
+	}
+
+	/**
+	 * Local names of the named entities of the structural ontology
+	 */
+	private static synchronized Set<String> getNamedEntities()
+	{
+		if(namedEntities == null)
+		{ namedEntities = new HashSet<String>(Ontology.getBaseNames().values()); }
+
+		return namedEntities;
+	}
+
+	private void clearSymbols()
+	{
+		symbolIds = new HashMap<String, Integer>();
+		symbols = new ArrayList<String>();
+		functionalSymbols = new BitSet();
+	}
+
+	/**
+	 * Id of a symbol, added to the dictionary on first use
+	 */
+	private int symbol(String str)
+	{
+		Integer id = symbolIds.get(str);
+		if(id == null)
+		{
+			id = symbols.size();
+			symbolIds.put(str, id);
+			symbols.add(str);
+			if(functional.contains(str))
+			{ functionalSymbols.set(id); }
+		}
+		return id;
+	}
+
+	/**
+	 * Id of a symbol, -1 if unknown
+	 */
+	private int lookup(String str)
+	{
+		Integer id = symbolIds.get(str);
+		if(id == null)
+		{ return -1; }
+		else
+		{ return id; }
+	}
+
+	private static int hash(int s, int p, int v, boolean raw)
+	{
+		int h = (s*31 + p)*31 + v;
+		if(raw)
+		{ h = ~h; }
+		h *= 0x9E3779B1;
+		return h ^ (h >>> 16);
+	}
+
+	/**
+	 * Slot of the SPO index for this triple: either the one holding it or the empty one where to put it
+	 */
+	private int findSPO(int s, int p, int v, boolean raw)
+	{
+		int mask = spoIndex.length-1;
+		int slot = hash(s, p, v, raw) & mask;
+
+		while(spoIndex[slot] != 0)
+		{
+			int pos = spoIndex[slot]-1;
+			if(subjects[pos] == s && properties[pos] == p && values[pos] == v && raws[pos] == raw)
+			{ return slot; }
+			slot = (slot+1) & mask;
+		}
+		return slot;
+	}
+
+	/**
+	 * Slot of the PS index for this subject and property
+	 */
+	private int findPS(int s, int p)
+	{
+		int mask = psIndex.length-1;
+		int slot = hash(s, p, 0, false) & mask;
+
+		while(psIndex[slot] != 0)
+		{
+			int pos = psIndex[slot]-1;
+			if(subjects[pos] == s && properties[pos] == p)
+			{ return slot; }
+			slot = (slot+1) & mask;
+		}
+		return slot;
+	}
+
+	/**
+	 * Home slot of the triple at pos in an index
+	 */
+	private int home(int[] index, int pos)
+	{
+		if(index == spoIndex)
+		{ return hash(subjects[pos], properties[pos], values[pos], raws[pos]) & (index.length-1); }
+		else
+		{ return hash(subjects[pos], properties[pos], 0, false) & (index.length-1); }
+	}
+
+	/**
+	 * Empty a slot of an index and shift back the following entries of its cluster
+	 */
+	private void unindex(int[] index, int slot)
+	{
+		int mask = index.length-1;
+		int i = slot;
+		int j = slot;
+		index[i] = 0;
+
+		while(true)
+		{
+			j = (j+1) & mask;
+			if(index[j] == 0)
+			{ return; }
+
+			//The entry stays if its home slot is cyclically in (i, j]
+			int k = home(index, index[j]-1);
+			if( (i <= j) ? (i < k && k <= j) : (i < k || k <= j) )
+			{ continue; }
+
+			index[i] = index[j];
+			index[j] = 0;
+			i = j;
+		}
+	}
+
+	private boolean isFunctional(int pos)
+	{
+		return functionalSymbols.get(properties[pos]);
+	}
+
+	/**
+	 * Add a triple, replacing the previous value of a functional property
+	 * @return false if nothing changed
+	 */
+	private boolean insert(String subject, String property, String value, boolean raw)
+	{
+		int s = symbol(subject);
+		int p = symbol(property);
+		int v = symbol(value);
+
+		if(spoIndex[findSPO(s, p, v, raw)] != 0)
+		{ return false; }
+
+		if(functionalSymbols.get(p))
+		{
+			int slot = findPS(s, p);
+			if(psIndex[slot] != 0)
+			{
+				//Upsert: the value is replaced in place
+				int pos = psIndex[slot]-1;
+				changed(s, p, values[pos], raws[pos], false);
+				unindex(spoIndex, findSPO(s, p, values[pos], raws[pos]));
+				values[pos] = v;
+				raws[pos] = raw;
+				spoIndex[findSPO(s, p, v, raw)] = pos+1;
+				changed(s, p, v, raw, true);
+				compactSymbols();
+				return true;
+			}
+		}
+
+		if(size == subjects.length)
+		{ grow(); }
+
+		subjects[size] = s;
+		properties[size] = p;
+		values[size] = v;
+		raws[size] = raw;
+		size++;
+
+		spoIndex[findSPO(s, p, v, raw)] = size;
+		if(functionalSymbols.get(p))
+		{ psIndex[findPS(s, p)] = size; }
+
+		changed(s, p, v, raw, true);
+		return true;
+	}
+
+	/**
+	 * Remove a triple
+	 * @return false if it was not in the store
+	 */
+	private boolean delete(String subject, String property, String value, boolean raw)
+	{
+		int s = lookup(subject);
+		int p = lookup(property);
+		int v = lookup(value);
+		if(s < 0 || p < 0 || v < 0)
+		{ return false; }
+
+		int slot = findSPO(s, p, v, raw);
+		if(spoIndex[slot] == 0)
+		{ return false; }
+
+		int pos = spoIndex[slot]-1;
+		changed(s, p, v, raw, false);
+		unindex(spoIndex, slot);
+		if(isFunctional(pos))
+		{ unindex(psIndex, findPS(s, p)); }
+
+		//The last triple takes the free position
+		int last = size-1;
+		if(pos != last)
+		{
+			spoIndex[findSPO(subjects[last], properties[last], values[last], raws[last])] = pos+1;
+			if(isFunctional(last))
+			{ psIndex[findPS(subjects[last], properties[last])] = pos+1; }
+
+			subjects[pos] = subjects[last];
+			properties[pos] = properties[last];
+			values[pos] = values[last];
+			raws[pos] = raws[last];
+		}
+		size--;
+
+		compactSymbols();
+		return true;
+	}
+
+	/**
+	 * Notify the listener if the triple added or removed is a context data (relation between named entities)
+	 */
+	private void changed(int s, int p, int v, boolean raw, boolean added)
+	{
+		if(listener != null && !raw)
+		{
+			Set<String> named = getNamedEntities();
+			String subj = symbols.get(s);
+			String obj = symbols.get(v);
+
+			if(named.contains(subj) && named.contains(obj))
+			{ listener.contextDataChanged(ContextData.of(subj, symbols.get(p), obj), added); }
+		}
+	}
+
+	/**
+	 * Set the listener of the context data: it is notified of the context data currently observed,
+	 * then of each context data added or removed (a triple of the store is a single context data).
+	 */
+	public void setContextDataListener(ContextDataListener listener)
+	{
+		this.listener = listener;
+
+		if(listener != null)
+		{
+			for(ContextData cd: getContextData())
+			{ listener.contextDataChanged(cd, true); }
+		}
+	}
+
+	/**
+	 * Double the capacity, the indexes are kept at most half full
+	 */
+	private void grow()
+	{
+		int capacity = subjects.length*2;
+		subjects = Arrays.copyOf(subjects, capacity);
+		properties = Arrays.copyOf(properties, capacity);
+		values = Arrays.copyOf(values, capacity);
+		raws = Arrays.copyOf(raws, capacity);
+		rebuildIndexes();
+	}
+
+	private void rebuildIndexes()
+	{
+		spoIndex = new int[2*subjects.length];
+		psIndex = new int[2*subjects.length];
+
+		for(int pos=0; pos<size; pos++)
+		{
+			spoIndex[findSPO(subjects[pos], properties[pos], values[pos], raws[pos])] = pos+1;
+			if(isFunctional(pos))
+			{ psIndex[findPS(subjects[pos], properties[pos])] = pos+1; }
+		}
+	}
+
+	/**
+	 * Rebuild the dictionary when most of its symbols are no longer used
+	 * (e.g. sensor values replaced by newer ones)
+	 */
+	private void compactSymbols()
+	{
+		if(symbols.size() <= 4*size + INITSIZE)
+		{ return; }
+
+		ArrayList<String> oldSymbols = symbols;
+		clearSymbols();
+
+		for(int pos=0; pos<size; pos++)
+		{
+			subjects[pos] = symbol(oldSymbols.get(subjects[pos]));
+			properties[pos] = symbol(oldSymbols.get(properties[pos]));
+			values[pos] = symbol(oldSymbols.get(values[pos]));
+		}
+
+		rebuildIndexes();
+	}
+
+	/**
+	 * Add a triple concerning an entity having the name given in parameter with a property and another named entity
+	 * Nothing is added if one is unknown.
+	 */
+	public void updateEntity(String name, String property, String object)
+	{
+		String subj = names.get(name);
+		String obj = names.get(object);
+
+		if(subj != null && obj != null && insert(subj, property, obj, false))
+		{ version++; }
+	}
+
+	/**
+	 * Add a data property for a given entity (by local name)
+	 * Caution: value is not quoted
+	 */
+	public void updateProperty(String subject, String property, String value)
+	{
+		boolean changed;
+		if(value.startsWith(LEAFPREFIX))
+		{ changed = insert(subject, property, value.substring(LEAFPREFIX.length()), false); }
+		else
+		{ changed = insert(subject, property, value, true); }
+
+		if(changed)
+		{ version++; }
+	}
+
+	/**
+	 * Add all the triples of a frame, the version is incremented once
+	 */
+	public void updateFrame(ContextFrame frame)
+	{
+		long initVersion = version;
+
+		for(int i=0; i<frame.size(); i++)
+		{
+			if(frame.isRaw(i))
+			{ updateProperty(frame.getEntity(i), frame.getProperty(i), frame.getValue(i)); }
+			else
+			{ updateEntity(frame.getEntity(i), frame.getProperty(i), frame.getValue(i)); }
+		}
+
+		if(version != initVersion)
+		{ version = initVersion+1; }
+	}
+
+	/**
+	 * Remove a triple concerning an entity having the name given in parameter with a property and another named entity
+	 */
+	public void removeEntity(String name, String property, String object)
+	{
+		String subj = names.get(name);
+		String obj = names.get(object);
+
+		if(subj != null && obj != null && delete(subj, property, obj, false))
+		{ version++; }
+	}
+
+	/**
+	 * Remove a data property (i.e. literal for a given entity)
+	 * Caution: value is not quoted
+	 */
+	public void removeProperty(String subject, String property, String value)
+	{
+		boolean changed;
+		if(value.startsWith(LEAFPREFIX))
+		{ changed = delete(subject, property, value.substring(LEAFPREFIX.length()), false); }
+		else
+		{ changed = delete(subject, property, value, true); }
+
+		if(changed)
+		{ version++; }
+	}
+
+	/**
+	 * True if the store holds this triple between entities (by local name), without allocating
+	 */
+	public boolean contains(String subject, String property, String object)
+	{
+		int s = lookup(subject);
+		int p = lookup(property);
+		int o = lookup(object);
+
+		return s >= 0 && p >= 0 && o >= 0 && spoIndex[findSPO(s, p, o, false)] != 0;
+	}
+
+	/**
+	 * Number of triples
+	 */
+	public int size()
+	{
+		return size;
+	}
+
+	/**
+	 * Modification stamp of the store
+	 */
+	public long getVersion()
+	{
+		return version;
+	}
+
+	/**
+	 * Get the relations between named entities, as Ontology.getContextData() (but without inference).
+	 * The result is kept until the next modification: the returned list is shared and must not be modified.
+	 */
+	public ArrayList<ContextData> getContextData()
+	{
+		if(contextData != null && contextDataVersion == version)
+		{ return contextData; }
+
+		ArrayList<ContextData> ret = new ArrayList<ContextData>();
+		Set<String> named = getNamedEntities();
+
+		for(int pos=0; pos<size; pos++)
+		{
+			if(!raws[pos])
+			{
+				String subj = symbols.get(subjects[pos]);
+				String obj = symbols.get(values[pos]);
+
+				if(named.contains(subj) && named.contains(obj))
+				{ ret.add(ContextData.of(subj, symbols.get(properties[pos]), obj)); }
+			}
+		}
+
+		contextData = ret;
+		contextDataVersion = version;
+
+		return ret;
+	}
+
+	/**
+	 * Build the ontology of the situation: the structural ontology updated with the triples of the store
+	 */
+	public Ontology toOntology()
+	{
+		Ontology onto = new Ontology();
+
+		//Context data of the structural ontology that were removed
+		for(ContextData cd: Ontology.getBaseContextData())
+		{
+			if(!contains(cd.getEntity(), cd.getProperty(), cd.getValue()))
+			{ onto.removeProperty(cd.getEntity(), cd.getProperty(), LEAFPREFIX+cd.getValue()); }
+		}
+
+		ContextFrame frame = new ContextFrame();
+		for(int pos=0; pos<size; pos++)
+		{
+			String value = symbols.get(values[pos]);
+			if(!raws[pos])
+			{ value = LEAFPREFIX+value; }
+
+			frame.add(symbols.get(subjects[pos]), symbols.get(properties[pos]), value, true);
+		}
+		onto.updateFrame(frame);
+
+		return onto;
+	}
+}
@@ -0,0 +1,238 @@
+package leaf.context;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import leaf.ontology.Ontology;
+
+/**
+ * Compact wire format of the context frames received by the LiveSituation UDP server.
+ * One datagram carries one frame:
+ * version (1 byte, VERSION) | number of records (2 bytes, unsigned, big endian) | records
+ * Each record is:
+ * kind (1 byte: KINDDATA or KINDRAW) | entity | property | value
+ * where each string is its length (1 byte, unsigned) followed by its UTF-8 bytes.
+ *
+ * Strings are interned in a symbol table looked up directly from the buffer bytes:
+ * once the vocabulary of the sensors has been seen, decoding a datagram does not allocate.
+ * Values of direct triples are checked once per symbol (see Ontology.isValidValue()): a datagram carrying a value
+ * that can't be parsed is rejected as malformed, it never reaches the model.
+ * A codec is not thread safe, use one per thread.
+ * @author Nathan Ramoly
+ *
+ */
+public class FrameCodec {
+
+	/** Attributes **/
+
+	/**
+	 * Version of the format
+	 */
+	public static final byte VERSION = 1;
+
+	/**
+	 * Record kind: triple between named entities
+	 */
+	public static final byte KINDDATA = 0;
+
+	/**
+	 * Record kind: direct triple (with node id)
+	 */
+	public static final byte KINDRAW = 1;
+
+	/**
+	 * Maximum length of an encoded string
+	 */
+	public static final int MAXSTRLEN = 255;
+
+	/**
+	 * Size of the symbol table (power of 2).
+	 * When it is full it is emptied (e.g. continuous values that never repeat).
+	 */
+	private static final int SYMBOLS = 4096;
+
+	/**
+	 * Symbol table: bytes of the string and the string itself (open addressing)
+	 */
+	private byte[][] symbolBytes;
+
+	private String[] symbolStrings;
+
+	private int nbSymbols;
+
+	/**
+	 * Validity of the symbols as values of direct triples: 0 not checked yet, VALID or INVALID
+	 */
+	private byte[] symbolChecks;
+
+	private static final byte VALID = 1;
+
+	private static final byte INVALID = 2;
+
+	/**
+	 * Slot of the last string read
+	 */
+	private int lastSlot;
+
+
+	/** Methods **/
+
+	public FrameCodec()
+	{
+		symbolBytes = new byte[SYMBOLS][];
+		symbolStrings = new String[SYMBOLS];
+		symbolChecks = new byte[SYMBOLS];
+		nbSymbols = 0;
+	}
+
+	/**
+	 * Decode one datagram (from position to limit) and add its records to the frame.
+	 * @return false if the datagram is malformed (including a value of a direct triple that can't be parsed),
+	 * in this case nothing is added to the frame
+	 */
+	public boolean decode(ByteBuffer buf, ContextFrame frame)
+	{
+		int initSize = frame.size();
+
+		if(buf.remaining() < 3 || buf.get() != VERSION)
+		{ return false; }
+
+		int nbRecords = buf.getShort() & 0xFFFF;
+
+		for(int i=0; i<nbRecords; i++)
+		{
+			if(!buf.hasRemaining())
+			{ frame.truncate(initSize); return false; }
+
+			byte kind = buf.get();
+			String entity = readString(buf);
+			String property = readString(buf);
+			String value = readString(buf);
+
+			if(entity == null || property == null || value == null || (kind != KINDDATA && kind != KINDRAW)
+					|| (kind == KINDRAW && !isValidValue(value)))
+			{ frame.truncate(initSize); return false; }
+
+			frame.add(entity, property, value, kind == KINDRAW);
+		}
+
+		return true;
+	}
+
+	/**
+	 * Encode a whole frame in the buffer (from its position).
+	 * Used by context sources, the frame must fit in one datagram.
+	 */
+	public static void encode(ContextFrame frame, ByteBuffer buf)
+	{
+		buf.put(VERSION);
+		buf.putShort((short)frame.size());
+
+		for(int i=0; i<frame.size(); i++)
+		{
+			buf.put(frame.isRaw(i) ? KINDRAW : KINDDATA);
+			writeString(buf, frame.getEntity(i));
+			writeString(buf, frame.getProperty(i));
+			writeString(buf, frame.getValue(i));
+		}
+	}
+
+	private static void writeString(ByteBuffer buf, String str)
+	{
+		byte[] bytes = str.getBytes(StandardCharsets.UTF_8);
+		if(bytes.length > MAXSTRLEN)
+		{ throw new IllegalArgumentException("String too long for a context frame: "+str); }
+
+		buf.put((byte)bytes.length);
+		buf.put(bytes);
+	}
+
+	/**
+	 * Read a string and get it from the symbol table
+	 * @return null if the buffer is too short
+	 */
+	private String readString(ByteBuffer buf)
+	{
+		if(!buf.hasRemaining())
+		{ return null; }
+
+		int len = buf.get() & 0xFF;
+		if(buf.remaining() < len)
+		{ return null; }
+
+		int start = buf.position();
+
+		//Hash of the bytes
+		int hash = 1;
+		for(int i=start; i<start+len; i++)
+		{ hash = 31*hash + buf.get(i); }
+
+		//Look up in symbol table
+		int slot = (hash ^ (hash >>> 16)) & (SYMBOLS-1);
+		while(symbolBytes[slot] != null)
+		{
+			if(sameBytes(symbolBytes[slot], buf, start, len))
+			{
+				buf.position(start+len);
+				lastSlot = slot;
+				return symbolStrings[slot];
+			}
+			slot = (slot+1) & (SYMBOLS-1);
+		}
+
+		//New symbol
+		byte[] bytes = new byte[len];
+		buf.get(bytes);
+		String str = new String(bytes, StandardCharsets.UTF_8);
+
+		//Keep the table at most half full
+		if(nbSymbols >= SYMBOLS/2)
+		{
+			clearSymbols();
+			slot = (hash ^ (hash >>> 16)) & (SYMBOLS-1);
+		}
+
+		symbolBytes[slot] = bytes;
+		symbolStrings[slot] = str;
+		symbolChecks[slot] = 0;
+		nbSymbols++;
+		lastSlot = slot;
+
+		return str;
+	}
+
+	/**
+	 * Check the last string read as a value of a direct triple (once per symbol)
+	 */
+	private boolean isValidValue(String value)
+	{
+		if(symbolChecks[lastSlot] == 0)
+		{ symbolChecks[lastSlot] = Ontology.isValidValue(value) ? VALID : INVALID; }
+
+		return symbolChecks[lastSlot] == VALID;
+	}
+
+	private static boolean sameBytes(byte[] bytes, ByteBuffer buf, int start, int len)
+	{
+		if(bytes.length != len)
+		{ return false; }
+
+		for(int i=0; i<len; i++)
+		{
+			if(bytes[i] != buf.get(start+i))
+			{ return false; }
+		}
+		return true;
+	}
+
+	private void clearSymbols()
+	{
+		for(int i=0; i<SYMBOLS; i++)
+		{
+			symbolBytes[i] = null;
+			symbolStrings[i] = null;
+			symbolChecks[i] = 0;
+		}
+		nbSymbols = 0;
+	}
+}
@@ -0,0 +1,310 @@
+package leaf.context;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Bounded single-producer/single-consumer ring buffer of context frames.
+ * It decouples the reception of context (UDP server thread, producer) from the update of the
+ * ontology (model writer thread, consumer), so that risk queries never stall the socket.
+ * Slots are preallocated frames: frames are copied in and out, nothing is allocated once the slots are warm.
+ * It is lock-free: the consumer takes a slot by moving the head with a CAS, which allows the producer to drop
+ * the oldest frame (also with a CAS) when the queue is full.
+ * @author Nathan Ramoly
+ *
+ */
+public class IngestionQueue {
+
+	/**
+	 * What the producer does when the queue is full
+	 */
+	public enum Policy {
+		/** Wait until the consumer frees a slot (no loss, the socket buffer fills up instead) */
+		BLOCK,
+		/** Drop the oldest pending frame */
+		DROP_OLDEST,
+		/** Merge the frames in a pending frame on the producer side, published as soon as a slot is free
+		 * (the latest value of each single valued (entity, property) is kept, see Coalescer) */
+		COALESCE
+	}
+
+	/** Attributes **/
+
+	/**
+	 * Wait time of the producer when the queue is full (ns)
+	 */
+	private static final long WAITFULL = 50000;
+
+	/**
+	 * Value of reading when the consumer is not copying any slot
+	 */
+	private static final long NONE = Long.MIN_VALUE;
+
+	/**
+	 * Maximum number of triples of the pending frame (COALESCE policy): above, it is published by dropping the oldest frame
+	 */
+	public static final int MAXPENDING = 8192;
+
+	private final ContextFrame[] slots;
+
+	private final int mask;
+
+	private final Policy policy;
+
+	/**
+	 * Index of the next frame to read, moved by the consumer (take) or by the producer (drop)
+	 */
+	private final AtomicLong head;
+
+	/**
+	 * Index of the next frame to write, moved by the producer only
+	 */
+	private volatile long tail;
+
+	/**
+	 * Index of the slot being copied by the consumer (NONE if none): the producer must not overwrite it
+	 */
+	private volatile long reading;
+
+	/**
+	 * Frames waiting for a free slot (COALESCE policy), merged by (entity, property), producer side
+	 */
+	private final Coalescer pending;
+
+	/**
+	 * Consumer thread, woken up when a frame is published
+	 */
+	private volatile Thread consumer;
+
+	/**
+	 * Counters
+	 */
+	private final AtomicLong nbPublished;
+
+	private final AtomicLong nbDropped;
+
+	private final AtomicLong nbCoalesced;
+
+
+	/** Methods **/
+
+	/**
+	 * @param capacity Number of slots (rounded up to a power of 2)
+	 * @param policy Behavior of the producer when the queue is full
+	 */
+	public IngestionQueue(int capacity, Policy policy)
+	{
+		this(capacity, policy, Collections.<String>emptySet());
+	}
+
+	/**
+	 * @param capacity Number of slots (rounded up to a power of 2)
+	 * @param policy Behavior of the producer when the queue is full
+	 * @param properties Single valued properties, whose pending values supersede each others (COALESCE policy)
+	 */
+	public IngestionQueue(int capacity, Policy policy, Collection<String> properties)
+	{
+		int size = Integer.highestOneBit(Math.max(2, capacity)-1) << 1;
+
+		slots = new ContextFrame[size];
+		for(int i=0; i<size; i++)
+		{ slots[i] = new ContextFrame(); }
+
+		mask = size-1;
+		this.policy = policy;
+		head = new AtomicLong(0);
+		tail = 0;
+		reading = NONE;
+		pending = new Coalescer(0, properties);
+		consumer = null;
+		nbPublished = new AtomicLong(0);
+		nbDropped = new AtomicLong(0);
+		nbCoalesced = new AtomicLong(0);
+	}
+
+	/**
+	 * Producer side: add a copy of the frame to the queue.
+	 * With COALESCE, the frame may be merged into the pending one (see flush()); if the pending frame grows above MAXPENDING triples
+	 * (e.g. multi valued properties, which are not merged), it is published as with DROP_OLDEST.
+	 */
+	public void offer(ContextFrame frame)
+	{
+		if(policy == Policy.COALESCE)
+		{
+			//Keep order: pending frames go first
+			if(!pending.isEmpty() || isFull())
+			{
+				pending.add(frame);
+				nbCoalesced.incrementAndGet();
+
+				if(pending.getFrame().size() > MAXPENDING)
+				{
+					publish(pending.getFrame(), true);
+					pending.clear();
+				}
+				else
+				{ flush(); }
+				return;
+			}
+		}
+
+		publish(frame, policy == Policy.DROP_OLDEST);
+	}
+
+	/**
+	 * Producer side: publish the pending frame if a slot is free (COALESCE policy)
+	 * @return true if nothing is pending anymore
+	 */
+	public boolean flush()
+	{
+		if(!pending.isEmpty() && !isFull())
+		{
+			publish(pending.getFrame(), false);
+			pending.clear();
+		}
+		return pending.isEmpty();
+	}
+
+	/**
+	 * Copy a frame into the slot at tail, waiting for a free slot if the queue is full
+	 * @param drop Drop the oldest frame instead of waiting
+	 */
+	private void publish(ContextFrame frame, boolean drop)
+	{
+		long t = tail;
+
+		//Wait for a free slot
+		while(t - head.get() >= slots.length)
+		{
+			if(drop)
+			{
+				long h = head.get();
+				if(t - h >= slots.length && head.compareAndSet(h, h+1))
+				{ nbDropped.incrementAndGet(); }
+			}
+			else
+			{
+				LockSupport.parkNanos(WAITFULL);
+			}
+		}
+
+		//The slot may still be copied by the consumer
+		while(reading == t - slots.length)
+		{ Thread.yield(); }
+
+		ContextFrame slot = slots[(int)(t & mask)];
+		slot.clear();
+		append(slot, frame);
+
+		tail = t+1;
+		nbPublished.incrementAndGet();
+
+		Thread c = consumer;
+		if(c != null)
+		{ LockSupport.unpark(c); }
+	}
+
+	private static void append(ContextFrame dest, ContextFrame src)
+	{
+		for(int i=0; i<src.size(); i++)
+		{
+			dest.add(src.getEntity(i), src.getProperty(i), src.getValue(i), src.isRaw(i));
+		}
+	}
+
+	/**
+	 * Consumer side: copy the oldest frame into the given one (cleared first)
+	 * @return false if the queue is empty
+	 */
+	public boolean poll(ContextFrame into)
+	{
+		long h;
+
+		//Take the slot at head
+		do {
+			h = head.get();
+			if(h >= tail)
+			{
+				reading = NONE;
+				return false;
+			}
+			reading = h;
+		} while(!head.compareAndSet(h, h+1));
+
+		into.clear();
+		append(into, slots[(int)(h & mask)]);
+
+		reading = NONE;
+		return true;
+	}
+
+	/**
+	 * Consumer side: wait for a frame to be published (or the timeout, in ns)
+	 */
+	public void await(long timeout)
+	{
+		consumer = Thread.currentThread();
+		if(isEmpty())
+		{ LockSupport.parkNanos(this, timeout); }
+	}
+
+	public boolean isFull()
+	{
+		return tail - head.get() >= slots.length;
+	}
+
+	public boolean isEmpty()
+	{
+		return head.get() >= tail;
+	}
+
+	/**
+	 * Number of frames waiting in the queue
+	 */
+	public int getDepth()
+	{
+		return (int)Math.max(0, tail - head.get());
+	}
+
+	public int getCapacity()
+	{
+		return slots.length;
+	}
+
+	public Policy getPolicy()
+	{
+		return policy;
+	}
+
+	/**
+	 * Number of frames published into the queue
+	 */
+	public long getNbPublished()
+	{
+		return nbPublished.get();
+	}
+
+	/**
+	 * Number of frames dropped (DROP_OLDEST policy, or COALESCE policy above MAXPENDING)
+	 */
+	public long getNbDropped()
+	{
+		return nbDropped.get();
+	}
+
+	/**
+	 * Number of frames merged into a pending frame (COALESCE policy)
+	 */
+	public long getNbCoalesced()
+	{
+		return nbCoalesced.get();
+	}
+
+	public String toString()
+	{
+		return "IngestionQueue("+policy+") depth="+getDepth()+"/"+slots.length+" published="+getNbPublished()
+				+" dropped="+getNbDropped()+" coalesced="+getNbCoalesced();
+	}
+}
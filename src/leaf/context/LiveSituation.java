@@ -1,13 +1,34 @@
 package leaf.context;
 
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
 
+import leaf.causes.Cause;
+import leaf.causes.Extraction;
 import leaf.ontology.Ontology;
 import leaf.tools.DataBaseManager;
+import leaf.tools.HistoryIndex;
 import leaf.tools.LeafLog;
 
 /**
@@ -19,19 +40,193 @@ import leaf.tools.LeafLog;
  */
 public class LiveSituation extends Thread {
 
+	/**
+	 * Risk of a task, kept up to date with the observed context data
+	 */
+	private static class TaskRisk {
+		/**
+		 * Causes of the task, by context data
+		 */
+		HashMap<ContextData, Cause> causes;
+		/**
+		 * Sum of the beliefs of the currently observed causes, in fixed point (see BELIEFSCALE):
+		 * removing a cause gives back exactly the sum before it was added
+		 */
+		long sumB;
+		/**
+		 * Number of currently observed causes
+		 */
+		int nbCause;
+		/**
+		 * Subscriptions to the risk of this task
+		 */
+		ArrayList<RiskSubscription> subscriptions = new ArrayList<RiskSubscription>();
+		/**
+		 * The sum changed since the subscriptions were checked
+		 */
+		boolean changed;
+	}
+	
 	/** Attributes **/
 	
+	/**
+	 * Default UDP port of the context server
+	 */
+	public static final int PORT = 4242;
+	
+	/**
+	 * Maximum size of a datagram (see FrameCodec for the format)
+	 */
+	public static final int MAXDATAGRAM = 65507;
+	
+	/**
+	 * Maximum number of datagrams gathered in a single frame before applying it
+	 */
+	public static final int MAXBATCH = 64;
+	
+	/**
+	 * Timeout of the wait for datagrams (ms), the server checks if it has to stop at this rate
+	 */
+	private static final long SELECTTIMEOUT = 200;
+	
+	/**
+	 * Scale of the sums of beliefs (a belief is kept with a precision of 2^-40)
+	 */
+	private static final double BELIEFSCALE = 1L << 40;
+	
+	/**
+	 * Timeout of the wait when frames are pending in the ingestion queue (ms)
+	 */
+	private static final long FLUSHTIMEOUT = 1;
+	
+	/**
+	 * Number of frames in the ingestion queue
+	 */
+	public static final int QUEUESIZE = 256;
+	
+	/**
+	 * Default coalescing window (ms): only the latest value of a property of an entity is applied per window
+	 */
+	public static final long COALESCEWINDOW = 50;
+	
+	/**
+	 * Path to the time to live of observations, per property
+	 */
+	public static final String TTLFILE = "res/onto/ttl.txt";
+	
+	/**
+	 * Path to the buckets of the numeric values, per property (see Quantizer)
+	 */
+	public static final String QUANTFILE = "res/onto/quantization.txt";
+	
+	/**
+	 * Precision of the expiry of observations (ms)
+	 */
+	private static final long TTLTICK = 100;
+	
+	/**
+	 * Number of slots of the expiry timer wheels
+	 */
+	private static final int TTLSLOTS = 512;
+	
+	/**
+	 * Default store of the current knowledge: compact store (see ContextStore) or ontology.
+	 * In compact mode, no rule is applied on the live situation (risk evaluation uses observed data only),
+	 * rules are applied on the saved situations.
+	 */
+	public static final boolean COMPACT = false;
+	
+	/**
+	 * Time to live (ms) per property, lazily loaded by getTTLs()
+	 */
+	private static HashMap<String, Long> ttls = null;
+	
+	
 	/**
 	 * Current knowledge.
 	 * It is loaded from the default ontology. (Not loaded from a previous state)
 	 */
 	Ontology situation;
 	
+	/**
+	 * Current knowledge in compact mode (situation is then null)
+	 */
+	ContextStore store;
+	
+	/**
+	 * Compact mode: the current knowledge is kept in store instead of situation
+	 */
+	boolean compact;
+	
 	/**
 	 * Database manager
 	 */
 	DataBaseManager dbm;
 	
+	/**
+	 * UDP port the context server listens to
+	 */
+	int port;
+	
+	/**
+	 * The context server runs until this is set to false
+	 */
+	volatile boolean running;
+	
+	/**
+	 * Frames received by the server, waiting to be applied by the model writer thread
+	 */
+	IngestionQueue queue;
+	
+	/**
+	 * Coalescing stage of the model writer thread
+	 */
+	Coalescer coalescer;
+	
+	/**
+	 * Discretization of the numeric values before they are stored
+	 */
+	Quantizer quantizer;
+	
+	/**
+	 * Expiry dates of observed data (between named entities and direct triples)
+	 */
+	TimerWheel<List<String>> dataExpiry;
+	
+	TimerWheel<List<String>> rawDataExpiry;
+	
+	/**
+	 * Tasks whose risk is tracked (those queried at least once)
+	 */
+	HashMap<String, TaskRisk> taskRisks;
+	
+	/**
+	 * Reverse index: context data -> tracked tasks having it as cause
+	 */
+	HashMap<ContextData, ArrayList<TaskRisk>> causeTasks;
+	
+	/**
+	 * Context data of the current knowledge, kept up to date by its listener (see contextDataChanged())
+	 */
+	HashSet<ContextData> observedCd;
+	
+	ContextDataListener cdListener;
+	
+	/**
+	 * Version of the causes in database when they were loaded
+	 */
+	long causesVersion;
+	
+	/**
+	 * Tracked tasks whose sum changed since the subscriptions were checked
+	 */
+	ArrayList<TaskRisk> changedRisks;
+	
+	/**
+	 * Thread delivering the notifications of the risk subscriptions, started on first subscription
+	 */
+	ExecutorService notifier;
+	
 	
 	/** Methods **/
 	
@@ -40,40 +235,702 @@ public class LiveSituation extends Thread {
 	 */
 	public LiveSituation()
 	{
-		situation = new Ontology();
+		this(PORT, IngestionQueue.Policy.BLOCK);
+	}
+	
+	/**
+	 * Constructor with the port of the context server
+	 */
+	public LiveSituation(int port)
+	{
+		this(port, IngestionQueue.Policy.BLOCK);
+	}
+	
+	/**
+	 * Constructor with the port of the context server and the backpressure policy of its ingestion queue
+	 */
+	public LiveSituation(int port, IngestionQueue.Policy policy)
+	{
+		this(port, policy, COMPACT);
+	}
+	
+	/**
+	 * Constructor with the port of the context server, the backpressure policy of its ingestion queue
+	 * and the store of the current knowledge (compact store or ontology)
+	 */
+	public LiveSituation(int port, IngestionQueue.Policy policy, boolean compact)
+	{
+		this.compact = compact;
 		dbm = DataBaseManager.getInstance();
+		taskRisks = new HashMap<String, TaskRisk>();
+		causeTasks = new HashMap<ContextData, ArrayList<TaskRisk>>();
+		observedCd = new HashSet<ContextData>();
+		changedRisks = new ArrayList<TaskRisk>();
+		cdListener = new ContextDataListener() {
+			@Override
+			public void contextDataChanged(ContextData cd, boolean added) {
+				LiveSituation.this.contextDataChanged(cd, added);
+			}
+		};
+		newSituation();
+		this.port = port;
+		running = true;
+		queue = new IngestionQueue(QUEUESIZE, policy, Ontology.getFunctionalProperties());
+		coalescer = new Coalescer(COALESCEWINDOW, Ontology.getFunctionalProperties());
+		quantizer = new Quantizer(QUANTFILE);
+		dataExpiry = new TimerWheel<List<String>>(TTLTICK, TTLSLOTS);
+		rawDataExpiry = new TimerWheel<List<String>>(TTLTICK, TTLSLOTS);
+		causesVersion = dbm.getCausesVersion();
+		notifier = null;
+	}
+	
+	/**
+	 * Get the time to live of observations per property (ms)
+	 */
+	private static synchronized HashMap<String, Long> getTTLs()
+	{
+		if(ttls == null)
+		{
+			ttls = new HashMap<String, Long>();
+			
+			BufferedReader br = null;
+			try {
+				br = new BufferedReader(new FileReader(TTLFILE));
+				String line;
+				while((line = br.readLine()) != null)
+				{
+					line = line.trim();
+					if(!line.isEmpty() && !line.startsWith("#"))
+					{
+						String[] elts = line.split("\\s+");
+						ttls.put(elts[0], Long.parseLong(elts[1]));
+					}
+				}
+			} catch (IOException e) {
+				LeafLog.w("LiveSituation", "No time to live for observations: "+e.getMessage());
+			}
+			finally {
+				if (br != null) {
+					try {br.close();} catch (IOException ignore) {}
+				}
+			}
+		}
+		
+		return ttls;
+	}
+	
+	/**
+	 * Load the default knowledge in the store in use
+	 */
+	private void newSituation()
+	{
+		//The context data of the previous knowledge are no longer observed
+		for(ContextData cd: new ArrayList<ContextData>(observedCd))
+		{ contextDataChanged(cd, false); }
+		
+		if(compact)
+		{
+			store = new ContextStore();
+			situation = null;
+			store.setContextDataListener(cdListener);
+		}
+		else
+		{
+			situation = new Ontology();
+			store = null;
+			situation.setContextDataListener(cdListener);
+		}
+	}
+	
+	/**
+	 * Add a triple between named entities to the current knowledge
+	 */
+	private void putData(String entity, String property, String value)
+	{
+		if(compact)
+		{ store.updateEntity(entity, property, value); }
+		else
+		{ situation.updateEntity(entity, property, value); }
+	}
+	
+	/**
+	 * Add a direct triple (with node id) to the current knowledge
+	 */
+	private void putRawData(String entity, String property, String value)
+	{
+		if(compact)
+		{ store.updateProperty(entity, property, value); }
+		else
+		{ situation.updateProperty(entity, property, value); }
+	}
+	
+	private void putFrame(ContextFrame frame)
+	{
+		if(compact)
+		{ store.updateFrame(frame); }
+		else
+		{ situation.updateFrame(frame); }
+	}
+	
+	/**
+	 * Remove a triple between named entities from the current knowledge
+	 */
+	private void deleteData(String entity, String property, String value)
+	{
+		if(compact)
+		{ store.removeEntity(entity, property, value); }
+		else
+		{ situation.removeEntity(entity, property, value); }
+	}
+	
+	/**
+	 * Remove a direct triple (with node id) from the current knowledge
+	 */
+	private void deleteRawData(String entity, String property, String value)
+	{
+		if(compact)
+		{ store.removeProperty(entity, property, value); }
+		else
+		{ situation.removeProperty(entity, property, value); }
+	}
+	
+	/**
+	 * Context data of the current knowledge (shared list, must not be modified)
+	 * @param infer Apply the rules before (ignored in compact mode)
+	 */
+	private ArrayList<ContextData> getCurrentContextData(boolean infer)
+	{
+		if(compact)
+		{ return store.getContextData(); }
+		
+		if(infer)
+		{ situation.applyRules(); }
+		return situation.getContextData();
+	}
+	
+	/**
+	 * Bring the deductions of the current knowledge up to date (ignored in compact mode): the context data they add
+	 * or retract are notified to the listener
+	 */
+	private void infer()
+	{
+		if(!compact)
+		{ situation.applyRules(); }
+	}
+	
+	/**
+	 * Bring the risks of the tracked tasks up to date with the current knowledge.
+	 * The sums of beliefs follow the context data as they appear or disappear (see contextDataChanged()),
+	 * only the deductions are brought up to date here.
+	 * If causes were updated in database (feedback), they are reloaded.
+	 */
+	private void updateRisks()
+	{
+		if(taskRisks.isEmpty())
+		{ return; }
+		
+		infer();
+		
+		if(dbm.getCausesVersion() != causesVersion)
+		{ loadCauses(); }
+		
+		checkSubscriptions();
+	}
+	
+	/**
+	 * A context data appeared in (or disappeared from) the current knowledge, as a triple was added or retracted:
+	 * the sums of beliefs of the tasks having it as cause are updated right away (through the reverse index)
+	 */
+	private void contextDataChanged(ContextData cd, boolean added)
+	{
+		if(added ? observedCd.add(cd) : observedCd.remove(cd))
+		{ updateSums(cd, added ? 1 : -1); }
+	}
+	
+	/**
+	 * Add (sign=1) or remove (sign=-1) the belief of a context data to the tasks having it as cause
+	 */
+	private void updateSums(ContextData cd, int sign)
+	{
+		ArrayList<TaskRisk> risks = causeTasks.get(cd);
+		if(risks != null)
+		{
+			for(TaskRisk risk: risks)
+			{
+				risk.sumB += sign*scaled(risk.causes.get(cd).getBelief());
+				risk.nbCause += sign;
+				changed(risk);
+			}
+		}
+	}
+	
+	/**
+	 * (Re)load the causes of the tracked tasks in a single query, and compute their sums from the observed context data
+	 */
+	private void loadCauses()
+	{
+		causesVersion = dbm.getCausesVersion();
+		causeTasks.clear();
+		
+		HashMap<String, HashMap<ContextData, Cause>> causes = dbm.getCauses(taskRisks.keySet());
+		for(Map.Entry<String, TaskRisk> entry: taskRisks.entrySet())
+		{
+			setCauses(entry.getValue(), causes.get(entry.getKey()));
+		}
+	}
+	
+	/**
+	 * Set the causes of a task in its risk and in the reverse index, and compute its sum
+	 */
+	private void setCauses(TaskRisk risk, HashMap<ContextData, Cause> causes)
+	{
+		risk.causes = causes;
+		risk.sumB = 0;
+		risk.nbCause = 0;
+		changed(risk);
+		
+		for(Cause cause: causes.values())
+		{
+			ArrayList<TaskRisk> risks = causeTasks.get(cause.getContextData());
+			if(risks == null)
+			{
+				risks = new ArrayList<TaskRisk>();
+				causeTasks.put(cause.getContextData(), risks);
+			}
+			risks.add(risk);
+			
+			if(observedCd.contains(cause.getContextData()))
+			{
+				risk.sumB += scaled(cause.getBelief());
+				risk.nbCause++;
+			}
+		}
+	}
+	
+	/**
+	 * Bring the risks up to date and track the given tasks from now on.
+	 * The causes of the tasks not tracked yet are loaded in a single query.
+	 */
+	private void updateRisks(Collection<String> tasks)
+	{
+		infer();
+		updateRisks();
+		
+		LinkedHashSet<String> newTasks = new LinkedHashSet<String>();
+		for(String task: tasks)
+		{
+			if(!taskRisks.containsKey(task))
+			{ newTasks.add(task); }
+		}
+		
+		if(!newTasks.isEmpty())
+		{
+			if(taskRisks.isEmpty())
+			{ causesVersion = dbm.getCausesVersion(); }
+			
+			HashMap<String, HashMap<ContextData, Cause>> causes = dbm.getCauses(newTasks);
+			for(String task: newTasks)
+			{
+				TaskRisk risk = new TaskRisk();
+				taskRisks.put(task, risk);
+				setCauses(risk, causes.get(task));
+			}
+		}
+	}
+	
+	/**
+	 * Mark the sum of a task as changed, for its subscriptions to be checked
+	 */
+	private void changed(TaskRisk risk)
+	{
+		if(!risk.changed && !risk.subscriptions.isEmpty())
+		{
+			risk.changed = true;
+			changedRisks.add(risk);
+		}
+	}
+	
+	/**
+	 * Check the subscriptions of the tasks whose sum changed, notify those whose threshold was crossed
+	 */
+	private void checkSubscriptions()
+	{
+		for(TaskRisk risk: changedRisks)
+		{
+			risk.changed = false;
+			double value = riskOf(risk.sumB);
+			
+			for(RiskSubscription sub: risk.subscriptions)
+			{
+				if(sub.update(value))
+				{ notifyCrossing(sub, value, sub.isAbove()); }
+			}
+		}
+		changedRisks.clear();
+	}
+	
+	/**
+	 * Deliver a notification on the notifier thread
+	 */
+	private void notifyCrossing(final RiskSubscription sub, final double risk, final boolean above)
+	{
+		LeafLog.i("Risk eval.", "Task "+sub.getTask()+" risk "+risk+(above ? " above " : " below ")+sub.getThreshold());
+		
+		notifier.execute(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					sub.getListener().riskCrossed(sub, risk, above);
+				} catch (RuntimeException e) {
+					LeafLog.e("LiveSituation", "Risk listener failed: "+e);
+				}
+			}
+		});
+	}
+	
+	/**
+	 * Subscribe to the risk of failure of a task: the listener is notified each time the risk crosses the threshold
+	 * (in both directions). The risk is evaluated along with the context updates, there is no need to poll it.
+	 * No notification is sent for the initial state, see RiskSubscription.isAbove().
+	 */
+	public synchronized RiskSubscription subscribe(String task, double threshold, RiskListener listener)
+	{
+		if(notifier == null)
+		{
+			notifier = Executors.newSingleThreadExecutor(new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread thread = new Thread(r, "LEAF risk notifier");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		}
+		
+		expire();
+		updateRisks(Collections.singletonList(task));
+		
+		TaskRisk risk = taskRisks.get(task);
+		RiskSubscription sub = new RiskSubscription(task, threshold, listener, riskOf(risk.sumB));
+		risk.subscriptions.add(sub);
+		
+		return sub;
+	}
+	
+	/**
+	 * Cancel a subscription
+	 */
+	public synchronized void unsubscribe(RiskSubscription sub)
+	{
+		TaskRisk risk = taskRisks.get(sub.getTask());
+		if(risk != null)
+		{ risk.subscriptions.remove(sub); }
+	}
+	
+	/**
+	 * Belief in fixed point, to be summed (see TaskRisk.sumB)
+	 */
+	private static long scaled(double belief)
+	{
+		return Math.round(belief*BELIEFSCALE);
+	}
+	
+	/**
+	 * Risk formula from the sum of beliefs of the observed causes (in fixed point, a negative sum counts as none)
+	 */
+	private static double riskOf(long scaledSumB)
+	{
+		double sumB = Math.max(0, scaledSumB)/BELIEFSCALE;
+		double factor = 1.0;
+		//Double risk = Math.atan( factor*sumB )/(Math.PI/2.0); //Atan between 0.1
+		return 1/(1 + Math.exp(-1*Math.log(factor*sumB)) );
+	}
+	
+	/**
+	 * Key of an observation in the expiry wheels.
+	 * Not a ContextData: raw values (positions, temperatures) would fill the context data dictionary.
+	 */
+	private static List<String> observation(String entity, String property, String value)
+	{
+		return Arrays.asList(entity, property, value);
+	}
+	
+	/**
+	 * Record the observation of a triple: set its expiry date if its property has a time to live
+	 */
+	private void observed(String entity, String property, String value, boolean raw)
+	{
+		Long ttl = getTTLs().get(property);
+		
+		if(ttl != null)
+		{
+			List<String> obs = observation(entity, property, value);
+			long deadline = System.currentTimeMillis() + ttl;
+			
+			if(raw)
+			{ rawDataExpiry.schedule(obs, deadline); }
+			else
+			{ dataExpiry.schedule(obs, deadline); }
+		}
+	}
+	
+	/**
+	 * Remove the observations whose time to live is over (and what was inferred from them)
+	 */
+	private synchronized void expire()
+	{
+		long now = System.currentTimeMillis();
+		ArrayList<List<String>> expired = new ArrayList<List<String>>();
+		
+		dataExpiry.advance(now, expired);
+		for(List<String> obs: expired)
+		{
+			deleteData(obs.get(0), obs.get(1), obs.get(2));
+		}
+		
+		int nbExpired = expired.size();
+		expired.clear();
+		
+		rawDataExpiry.advance(now, expired);
+		for(List<String> obs: expired)
+		{
+			deleteRawData(obs.get(0), obs.get(1), obs.get(2));
+		}
+		
+		nbExpired += expired.size();
+		if(nbExpired > 0)
+		{
+			LeafLog.d("LiveSituation", nbExpired+" observations expired");
+			updateRisks();
+		}
 	}
 	
 	/**
 	 * Main UDP program that wait for context data to arrive
+	 * It relies on a non-blocking channel: all the datagrams pending at once are decoded 
+	 * (see FrameCodec) into a single frame that is pushed to the ingestion queue.
+	 * The buffer, the frame and the decoded strings are reused from one datagram to the other.
+	 * Frames are applied to the ontology by a separate model writer thread.
 	 */
 	@Override
 	public void run() {
-
 		
+		LeafLog.m("LiveSituation", "Starting context server on port "+port);
+		
+		Thread writer = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				writeFrames();
+			}
+		}, "LEAF model writer");
+		writer.start();
+		
+		ByteBuffer buffer = ByteBuffer.allocateDirect(MAXDATAGRAM);
+		ContextFrame frame = new ContextFrame();
+		FrameCodec codec = new FrameCodec();
+		
+		DatagramChannel channel = null;
+		Selector selector = null;
+		
+		try {
+			channel = DatagramChannel.open();
+			channel.configureBlocking(false);
+			channel.bind(new InetSocketAddress(port));
+			
+			selector = Selector.open();
+			channel.register(selector, SelectionKey.OP_READ);
+			
+			while(running)
+			{
+				//Publish frames kept pending by the queue (COALESCE policy)
+				boolean flushed = queue.flush();
+				
+				if(selector.select(flushed ? SELECTTIMEOUT : FLUSHTIMEOUT) == 0)
+				{ continue; }
+				selector.selectedKeys().clear();
+				
+				//Gather all pending datagrams
+				frame.clear();
+				int nbDatagram = 0;
+				
+				buffer.clear();
+				while(nbDatagram < MAXBATCH && channel.receive(buffer) != null)
+				{
+					buffer.flip();
+					int frameSize = frame.size();
+					try {
+						if(!codec.decode(buffer, frame))
+						{ LeafLog.w("LiveSituation", "Malformed context datagram ignored"); }
+					} catch (RuntimeException e) {
+						//A bad datagram must not stop the server
+						frame.truncate(frameSize);
+						LeafLog.w("LiveSituation", "Malformed context datagram ignored: "+e);
+					}
+					buffer.clear();
+					nbDatagram++;
+				}
+				
+				if(!frame.isEmpty())
+				{ queue.offer(frame); }
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+			LeafLog.e("LiveSituation", "Context server stopped: "+e.getMessage());
+		}
+		finally {
+			if(selector != null)
+			{ try {selector.close();} catch (IOException ignore) {} }
+			if(channel != null)
+			{ try {channel.close();} catch (IOException ignore) {} }
+		}
+		
+		running = false;
+		try {
+			writer.join();
+		} catch (InterruptedException e) {
+			e.printStackTrace();
+		}
+		
+		LeafLog.m("LiveSituation", "Context server stopped");
+	}
+	
+	/**
+	 * Model writer: apply the frames of the ingestion queue to the ontology
+	 * Frames are gathered by the coalescer and applied once per window.
+	 * Remaining frames are applied before stopping.
+	 */
+	private void writeFrames()
+	{
+		ContextFrame frame = new ContextFrame();
+		
+		while(running || !queue.isEmpty() || !coalescer.isEmpty())
+		{
+			if(queue.poll(frame))
+			{
+				coalescer.add(frame);
+			}
+			else if(running)
+			{
+				if(coalescer.isEmpty())
+				{ queue.await(SELECTTIMEOUT*1000000); }
+				else
+				{ queue.await(coalescer.getTimeLeft(System.currentTimeMillis())*1000000); }
+			}
+			
+			if(coalescer.isDue(System.currentTimeMillis()) || (!running && queue.isEmpty() && !coalescer.isEmpty()))
+			{
+				//A bad frame must not stop the writer
+				try {
+					addFrame(coalescer.getFrame());
+				} catch(RuntimeException e) {
+					LeafLog.e("LiveSituation", "Frame of "+coalescer.getFrame().size()+" triples not applied: "+e);
+				}
+				coalescer.clear();
+			}
+			
+			expire();
+		}
+		
+		LeafLog.i("LiveSituation", queue.toString());
+		LeafLog.i("LiveSituation", coalescer.toString());
+	}
+	
+	/**
+	 * Ingestion queue of the context server (depth and counters)
+	 */
+	public IngestionQueue getIngestionQueue()
+	{
+		return queue;
+	}
+	
+	/**
+	 * Coalescing stage of the context server (window and statistics)
+	 */
+	public Coalescer getCoalescer()
+	{
+		return coalescer;
+	}
+	
+	/**
+	 * Ask the context server to stop (within SELECTTIMEOUT)
+	 */
+	public void stopServer()
+	{
+		running = false;
 	}
 	
 	/**
 	 * Add data
 	 */
-	public void addData(String entity, String property, String value)
+	public synchronized void addData(String entity, String property, String value)
 	{
-		situation.updateEntity(entity, property, value);
+		expire();
+		value = quantizer.observe(entity, property, value);
+		putData(entity, property, value);
+		observed(entity, property, value, false);
+		updateRisks();
 	}
 	
 	/**
 	 * Add a direct triple (with node id)
 	 */
-	public void addRawData(String entity, String property, String value)
+	public synchronized void addRawData(String entity, String property, String value)
+	{
+		expire();
+		value = quantizer.observe(entity, property, value);
+		putRawData(entity, property, value);
+		observed(entity, property, value, true);
+		updateRisks();
+	}
+	
+	/**
+	 * Add a whole frame of data (e.g. all the triples sent by a sensor at once) in one operation.
+	 * Readers (risk evaluation, save) never see a half-applied frame.
+	 * Its numeric values are quantized in place.
+	 */
+	public synchronized void addFrame(ContextFrame frame)
+	{
+		expire();
+		for(int i=0; i<frame.size(); i++)
+		{
+			frame.setValue(i, quantizer.observe(frame.getEntity(i), frame.getProperty(i), frame.getValue(i)));
+		}
+		putFrame(frame);
+		
+		for(int i=0; i<frame.size(); i++)
+		{
+			observed(frame.getEntity(i), frame.getProperty(i), frame.getValue(i), frame.isRaw(i));
+		}
+		updateRisks();
+	}
+	
+	/**
+	 * Remove data (the context data is no longer observed)
+	 */
+	public synchronized void removeData(String entity, String property, String value)
 	{
-		situation.updateProperty(entity, property, value);
+		value = quantizer.forget(entity, property, value);
+		deleteData(entity, property, value);
+		dataExpiry.cancel(observation(entity, property, value));
+		updateRisks();
+	}
+	
+	/**
+	 * Remove a direct triple (with node id)
+	 */
+	public synchronized void removeRawData(String entity, String property, String value)
+	{
+		value = quantizer.forget(entity, property, value);
+		deleteRawData(entity, property, value);
+		rawDataExpiry.cancel(observation(entity, property, value));
+		updateRisks();
 	}
 	
 	/**
 	 * Store the current situation in the history
 	 * @param task The current task during whom the situation was observed
 	 */
-	public void save(String task)
+	public synchronized void save(String task)
 	{		
 		//Save the file
 		DateFormat dateFormat = new SimpleDateFormat("yyyyMMdd_HHmmss_SSS");
@@ -82,21 +939,44 @@ public class LiveSituation extends Thread {
 		String ontoName = "situation_"+dateFormat.format(date)+".ttl";
 		String path = "res/history/" + ontoName;
 		
-		//Apply rules before saving
-		situation.applyRules();
+		//Remove outdated observations and apply rules before saving
+		expire();
+		Ontology onto;
+		if(compact)
+		{ onto = store.toOntology(); }
+		else
+		{ onto = situation; }
+		onto.applyRules();
 		
-		situation.export(path);
+		onto.export(path);
 		
 		//Create the entry in database
-		dbm.addSituationToHistory(task, path);		
+		int idSituation = dbm.addSituationToHistory(task, path);
+		
+		//Count its context data as observed in a successful situation
+		if(idSituation >= 0)
+		{
+			ArrayList<ContextData> cds = onto.getContextData();
+			dbm.addObservations(task, idSituation, true, cds);
+			HistoryIndex.getInstance().addSituation(task, idSituation, true, cds);
+		}
 	}
 	
 	/**
 	 * Update the history when informed the previous task failed
 	 */
-	public void lastTaskFailed()
+	public synchronized void lastTaskFailed()
 	{
-		dbm.updateFailLastAction();
+		//The last situation in database, whoever saved it
+		for(Map.Entry<Integer, String> failed: dbm.updateFailLastAction().entrySet())
+		{
+			//Its context data were observed in a failing situation after all
+			dbm.moveObservationsToFail(failed.getValue(), failed.getKey());
+			HistoryIndex.getInstance().setFailed(failed.getValue(), failed.getKey());
+			
+			//The failure is likely to be investigated: its history is parsed meanwhile
+			Extraction.prefetchHistory(failed.getValue());
+		}
 	}
 	
 	/**
@@ -104,70 +984,88 @@ public class LiveSituation extends Thread {
 	 * Risk formula atan(0.1*sB)/(pi/2)
 	 * Where sB = sum of belief
 	 * TODO find a better solution than sB
-	 * 
+	 * The sum is maintained as each triple is added or retracted (see contextDataChanged()), the risk is read from it:
+	 * the causes of the task are loaded from database at its first evaluation only.
 	 */
 	public synchronized Double getTaskCurrentRisk(String task)
 	{
 		LeafLog.m("Risk eval.", "Starting failing risk assesment for task "+task);
 		
-		//Apply rules
-		situation.applyRules();
+		//Remove outdated observations, the sums of beliefs are then up to date
+		expire();
+		updateRisks(Collections.singletonList(task));
+		TaskRisk taskRisk = taskRisks.get(task);
 		
-		//Get all current context data:
-		ArrayList<ContextData> currentCd = situation.getContextData();
-		//Get all the failure causes
-		ArrayList<ContextData> causes = dbm.getCD(task);
-		//List of currently observed causes (taken from cause list as they carry belief and nbrFeedback)
-		ArrayList<ContextData> obsCauses = new ArrayList<ContextData>();
+		LeafLog.d("Risk eval.", "risk computation info:  sumB="+taskRisk.sumB/BELIEFSCALE+" nbCause="+taskRisk.nbCause);
+		Double risk = riskOf(taskRisk.sumB);
 		
-		//Go through all causes
-		for(ContextData cause: causes)
-		{
-			//If cause is observed in current context
-			if(currentCd.contains(cause))
-			{
-				obsCauses.add(cause);
-			}
-		}
+		LeafLog.i("Risk eval.", "Task "+task+" has a risk of failure of: "+risk);
 		
-		//All caused identify, compute the risk
-		Double sumB = 0.0;
-		for(ContextData obsCause: obsCauses)
+		return risk;
+	}
+	
+	/**
+	 * Return the risks of failure of several tasks in the current context (see getTaskCurrentRisk()).
+	 * Rules are applied once, and the causes of the tasks never evaluated before are fetched in a single query:
+	 * each risk is then read from its maintained sum.
+	 * @return Risk by task
+	 */
+	public synchronized HashMap<String, Double> getTasksCurrentRisk(Collection<String> tasks)
+	{
+		LeafLog.m("Risk eval.", "Starting failing risk assesment for "+tasks.size()+" tasks");
+		
+		expire();
+		updateRisks(tasks);
+		
+		HashMap<String, Double> ret = new HashMap<String, Double>();
+		for(String task: tasks)
 		{
-			sumB += obsCause.getBelief();
+			ret.put(task, riskOf(taskRisks.get(task).sumB));
 		}
 		
-		Double factor = 1.0;
-		LeafLog.d("Risk eval.", "risk computation info:  sumB="+sumB+" nbCause="+obsCauses.size());
-		//Double risk = Math.atan( factor*sumB )/(Math.PI/2.0); //Atan between 0.1
-		Double risk = 1/(1 + Math.exp(-1*Math.log(factor*sumB)) );
+		LeafLog.i("Risk eval.", "Risks of failure: "+ret);
 		
-		LeafLog.i("Risk eval.", "Task "+task+" has a risk of failure of: "+risk);
-		
-		return risk;
+		return ret;
 	}
 	
 	/**
 	 * Reload the default ontology
 	 */
-	public void reset()
+	public synchronized void reset()
 	{
-		situation = new Ontology();
+		newSituation();
+		dataExpiry.clear();
+		rawDataExpiry.clear();
+		updateRisks();
 	}
 	
 	
 	/**
 	 * Assert if the current situation is runnable by statistical analysis
+	 * The history is not read: the number of successful and failing situations where each context data was observed
+	 * are counted in database when situations are saved (see save() and lastTaskFailed()), and looked up per current context data.
+	 * Only the situations saved before they were counted are read, once (see HistoryIndex.countHistory()).
 	 */
 	public Double getCurrentTaskRiskStat(String task)
 	{
 		//Get all current context data:
-		ArrayList<ContextData> currentCd = situation.getContextData();
-		ArrayList<ContextData> successCdHistory = getObservedCDHistory(task, dbm, true);
-		ArrayList<ContextData> failCdHistory = getObservedCDHistory(task, dbm, false);
+		ArrayList<ContextData> currentCd;
+		synchronized(this) {
+			expire();
+			currentCd = getCurrentContextData(false);
+		}
+		HistoryIndex index = HistoryIndex.getInstance();
+		if(!index.isCounted(task))
+		{
+			Extraction.prefetchHistory(task);
+			index.countHistory(task);
+		}
+		ContextDataCounter successCounts = new ContextDataCounter();
+		ContextDataCounter failCounts = new ContextDataCounter();
+		dbm.getObservationCounts(task, currentCd, successCounts, failCounts);
 		int nbFailSit = dbm.getNbrFailSituation(task);
 		
-		HashMap<ContextData, Double> scores =  computeScore(currentCd, successCdHistory, failCdHistory, nbFailSit);
+		HashMap<ContextData, Double> scores =  computeScore(currentCd, successCounts, failCounts, nbFailSit);
 		
 		//Find the max
 		Double max = 0.0;
@@ -186,27 +1084,19 @@ public class LiveSituation extends Thread {
 	/**
 	 * Copy from extraction for the statistical anaylis
 	 * Adjusted to be 0,1
+	 * @param shcd Number of successful situations where each context data was observed
+	 * @param fhcd Number of failing situations where each context data was observed
 	 */
-	private  HashMap<ContextData, Double> computeScore(ArrayList<ContextData> ucd, ArrayList<ContextData> shcd, ArrayList<ContextData> fhcd, int nbFailSit)
+	private  HashMap<ContextData, Double> computeScore(ArrayList<ContextData> ucd, ContextDataCounter shcd, ContextDataCounter fhcd, int nbFailSit)
 	{
 		HashMap<ContextData, Double> scores = new HashMap<ContextData, Double>();
 		
 		//For each currently observed unknown context data...
 		for(ContextData cd: ucd)
 		{
-			int score = 0;
-			int nbr = 0;
 			//count occurence in failure and success history
-			for(ContextData fcd: fhcd)
-			{
-				if(cd.equals(fcd))
-				{score++; nbr++;}
-			}
-			for(ContextData scd: shcd)
-			{				
-				if(cd.equals(scd))
-				{score-=1; nbr++; }
-			}
+			int score = fhcd.get(cd) - shcd.get(cd);
+			int nbr = fhcd.get(cd) + shcd.get(cd);
 			
 			Double res = (double)score/(double)nbr;
 			if(res < 0)
@@ -217,32 +1107,4 @@ public class LiveSituation extends Thread {
 		
 		return scores;
 	}
-	
-	/**
-	 * Copy from extraction for statisitcal analysis
-	 */
-	private static ArrayList<ContextData> getObservedCDHistory(String task, DataBaseManager dbm, boolean success)
-	{
-		ArrayList<ContextData> cdHistorySuccess = new ArrayList<ContextData>();
-		
-		ArrayList<String> paths = dbm.getOntoPaths(task, success);
-		
-		LeafLog.i("Extraction", "Reading all context in history for task "+task+". High number of disk IO !");
-		
-		//Go through all onto and get observed task
-		//A same context data can be observed and stored multiple times in the list
-		//The occurrence of a given cd will then be counted
-		//High amount of disk access !
-		for(String path: paths)
-		{
-			//LeafLog.d("Extraction", "Loading ontology: "+path);
-			
-			//Loading ontology
-			Ontology onto = new Ontology(path);
-			
-			cdHistorySuccess.addAll( onto.getContextData() );
-		}
-		
-		return cdHistorySuccess;
-	}
 }
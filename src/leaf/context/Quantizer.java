@@ -0,0 +1,328 @@
+package leaf.context;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.regex.Pattern;
+
+import leaf.tools.LeafLog;
+
+/**
+ * Discretization of the numeric values of some properties (e.g. positions, temperatures) before they are stored:
+ * a value is replaced by the representative of its bucket, so that sensor noise does not produce a new triple
+ * in each situation. Representatives are numbers (middle of the bucket), the rules comparing values still apply.
+ * Buckets are configured per property (see QUANTFILE), as:
+ * - "property b1 b2 ... bn": boundaries (in increasing order), values below b1 are b1, values above bn are bn
+ * - "property step w": buckets of width w
+ * - "property quantiles n": n buckets of (about) the same number of values, learnt from the observed values.
+ *   Values are kept unchanged until MINSAMPLES values were observed, boundaries are then recomputed every RELEARN values.
+ *   As boundaries move, the representative given to an observation is kept (up to MAXFROZEN observations), so that it is
+ *   removed with the representative it was added with (see forget()).
+ * Values that are not plain decimal numbers (e.g. NaN, Infinity, 150f), and values of properties not configured, are kept unchanged.
+ * Not thread safe (used by the live situation under its lock).
+ * @author Nathan Ramoly
+ *
+ */
+public class Quantizer {
+
+	/** Attributes **/
+
+	/**
+	 * Number of values kept (reservoir sampling) to learn the quantiles of a property
+	 */
+	private static final int RESERVOIR = 1024;
+
+	/**
+	 * Number of values to observe before learning the quantiles of a property
+	 */
+	private static final int MINSAMPLES = 64;
+
+	/**
+	 * Number of values observed between two computations of the quantiles
+	 */
+	private static final int RELEARN = 256;
+
+	/**
+	 * Maximum number of representatives kept for the observations of learnt buckets, the least recently observed are forgotten
+	 */
+	private static final int MAXFROZEN = 65536;
+
+	/**
+	 * Plain decimal number (as written by sensors), Java suffixes and special values are not numbers
+	 */
+	private static final Pattern NUMBER = Pattern.compile("[+-]?(\\d+(\\.\\d*)?|\\.\\d+)([eE][+-]?\\d+)?");
+
+	/**
+	 * Buckets of a property
+	 */
+	private static class Buckets {
+		/** Boundaries, in increasing order (null while the quantiles are not learnt) */
+		double[] boundaries;
+		/** Width of the buckets (step), 0 if boundaries are used */
+		double step;
+		/** Number of quantiles to learn, 0 if not learnt */
+		int nbQuantiles;
+		/** Sample of the observed values (quantiles) */
+		double[] samples;
+		/** Number of observed values (quantiles) */
+		long nbObserved;
+	}
+
+	/**
+	 * Buckets by property
+	 */
+	private final HashMap<String, Buckets> buckets;
+
+	private final Random random;
+
+	/**
+	 * Representatives given to the observations of learnt buckets, by (entity, property, value)
+	 */
+	private final LinkedHashMap<List<String>, String> frozen;
+
+
+	/** Methods **/
+
+	/**
+	 * Quantizer without any property configured
+	 */
+	public Quantizer()
+	{
+		buckets = new HashMap<String, Buckets>();
+		random = new Random();
+		frozen = new LinkedHashMap<List<String>, String>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<List<String>, String> eldest) {
+				return size() > MAXFROZEN;
+			}
+		};
+	}
+
+	/**
+	 * Quantizer configured by a file (see the format above)
+	 */
+	public Quantizer(String path)
+	{
+		this();
+
+		BufferedReader br = null;
+		try {
+			br = new BufferedReader(new FileReader(path));
+			String line;
+			while((line = br.readLine()) != null)
+			{
+				line = line.trim();
+				if(!line.isEmpty() && !line.startsWith("#"))
+				{
+					String[] elts = line.split("\\s+");
+					try {
+						if(elts[1].equals("step"))
+						{ setStep(elts[0], Double.parseDouble(elts[2])); }
+						else if(elts[1].equals("quantiles"))
+						{ setQuantiles(elts[0], Integer.parseInt(elts[2])); }
+						else
+						{
+							double[] boundaries = new double[elts.length-1];
+							for(int i=1; i<elts.length; i++)
+							{ boundaries[i-1] = Double.parseDouble(elts[i]); }
+							setBoundaries(elts[0], boundaries);
+						}
+					} catch (RuntimeException e) {
+						LeafLog.w("Quantizer", "Invalid buckets: "+line);
+					}
+				}
+			}
+		} catch (IOException e) {
+			LeafLog.w("Quantizer", "No quantization of values: "+e.getMessage());
+		}
+		finally {
+			if (br != null) {
+				try {br.close();} catch (IOException ignore) {}
+			}
+		}
+	}
+
+	/**
+	 * Set the boundaries of the buckets of a property
+	 */
+	public void setBoundaries(String property, double[] boundaries)
+	{
+		if(boundaries.length == 0)
+		{ throw new IllegalArgumentException("No boundary for "+property); }
+
+		Buckets b = new Buckets();
+		b.boundaries = boundaries.clone();
+		Arrays.sort(b.boundaries);
+		buckets.put(property, b);
+	}
+
+	/**
+	 * Set buckets of the same width for a property
+	 */
+	public void setStep(String property, double step)
+	{
+		if(step <= 0)
+		{ throw new IllegalArgumentException("Invalid step for "+property+": "+step); }
+
+		Buckets b = new Buckets();
+		b.step = step;
+		buckets.put(property, b);
+	}
+
+	/**
+	 * Learn the buckets of a property from its values
+	 * @param nbQuantiles Number of buckets
+	 */
+	public void setQuantiles(String property, int nbQuantiles)
+	{
+		if(nbQuantiles < 2)
+		{ throw new IllegalArgumentException("Invalid number of quantiles for "+property+": "+nbQuantiles); }
+
+		Buckets b = new Buckets();
+		b.nbQuantiles = nbQuantiles;
+		b.samples = new double[RESERVOIR];
+		buckets.put(property, b);
+	}
+
+	/**
+	 * Quantize an observed value of an entity (its buckets are learnt from it if configured so)
+	 */
+	public String observe(String entity, String property, String value)
+	{
+		Buckets b = buckets.get(property);
+		if(b == null)
+		{ return value; }
+
+		Double number = parse(value);
+		if(number == null)
+		{ return value; }
+
+		if(b.nbQuantiles == 0)
+		{ return quantize(b, number, value); }
+
+		learn(b, number);
+
+		//Learnt buckets move: the representative of the observation is kept
+		List<String> obs = Arrays.asList(entity, property, value);
+		String rep = frozen.get(obs);
+		if(rep == null)
+		{
+			rep = quantize(b, number, value);
+			frozen.put(obs, rep);
+		}
+
+		return rep;
+	}
+
+	/**
+	 * Quantize a value of an entity to remove it, without learning: the representative it was observed with is used
+	 * (and forgotten), the current buckets otherwise
+	 */
+	public String forget(String entity, String property, String value)
+	{
+		Buckets b = buckets.get(property);
+		if(b == null)
+		{ return value; }
+
+		Double number = parse(value);
+		if(number == null)
+		{ return value; }
+
+		if(b.nbQuantiles > 0)
+		{
+			String rep = frozen.remove(Arrays.asList(entity, property, value));
+			if(rep != null)
+			{ return rep; }
+		}
+
+		return quantize(b, number, value);
+	}
+
+	private static String quantize(Buckets b, double number, String value)
+	{
+		double rep;
+
+		if(b.step > 0)
+		{ rep = (Math.floor(number/b.step) + 0.5)*b.step; }
+		else if(b.boundaries != null)
+		{
+			double[] bounds = b.boundaries;
+			int pos = Arrays.binarySearch(bounds, number);
+			//Index of the first boundary above the value
+			int upper = pos >= 0 ? pos+1 : -pos-1;
+
+			if(upper == 0)
+			{ rep = bounds[0]; }
+			else if(upper == bounds.length)
+			{ rep = bounds[bounds.length-1]; }
+			else
+			{ rep = (bounds[upper-1] + bounds[upper])/2; }
+		}
+		else
+		{ return value; }
+
+		//Integers remain integers
+		if(value.indexOf('.') < 0 && value.indexOf('e') < 0 && value.indexOf('E') < 0)
+		{ return Long.toString(Math.round(rep)); }
+		else
+		{ return Double.toString(rep); }
+	}
+
+	/**
+	 * Sample a value (reservoir sampling) and recompute the quantiles if needed
+	 */
+	private void learn(Buckets b, double number)
+	{
+		b.nbObserved++;
+
+		if(b.nbObserved <= RESERVOIR)
+		{ b.samples[(int)b.nbObserved-1] = number; }
+		else
+		{
+			long pos = (long)(random.nextDouble()*b.nbObserved);
+			if(pos < RESERVOIR)
+			{ b.samples[(int)pos] = number; }
+		}
+
+		if(b.nbObserved == MINSAMPLES || (b.nbObserved > MINSAMPLES && b.nbObserved % RELEARN == 0))
+		{
+			double[] sorted = Arrays.copyOf(b.samples, (int)Math.min(b.nbObserved, RESERVOIR));
+			Arrays.sort(sorted);
+
+			//Boundaries at each quantile, without duplicates
+			double[] bounds = new double[b.nbQuantiles-1];
+			int nbBounds = 0;
+			for(int k=1; k<b.nbQuantiles; k++)
+			{
+				double bound = sorted[k*sorted.length/b.nbQuantiles];
+				if(nbBounds == 0 || bound > bounds[nbBounds-1])
+				{ bounds[nbBounds++] = bound; }
+			}
+			b.boundaries = Arrays.copyOf(bounds, nbBounds);
+		}
+	}
+
+	/**
+	 * Value of a plain decimal number, null otherwise
+	 */
+	private static Double parse(String value)
+	{
+		if(!NUMBER.matcher(value).matches())
+		{ return null; }
+
+		//e.g. 1e999
+		double number = Double.parseDouble(value);
+		if(Double.isInfinite(number))
+		{ return null; }
+
+		return number;
+	}
+}
@@ -0,0 +1,18 @@
+package leaf.context;
+
+/**
+ * Receives the notifications of a risk subscription (see LiveSituation.subscribe()).
+ * Notifications are delivered in order by a dedicated thread, never by the thread updating the context.
+ * @author Nathan Ramoly
+ *
+ */
+public interface RiskListener {
+
+	/**
+	 * The risk of the task crossed the threshold of the subscription
+	 * @param subscription The subscription (task and threshold)
+	 * @param risk The new risk of failure of the task
+	 * @param above True if the risk is now above (or equal to) the threshold, false if it went below
+	 */
+	public void riskCrossed(RiskSubscription subscription, double risk, boolean above);
+}
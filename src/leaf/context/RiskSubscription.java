@@ -0,0 +1,85 @@
+package leaf.context;
+
+/**
+ * Subscription to the risk of failure of a task: its listener is notified each time the risk crosses the threshold.
+ * Created by LiveSituation.subscribe(), cancelled by LiveSituation.unsubscribe().
+ * @author Nathan Ramoly
+ *
+ */
+public class RiskSubscription {
+
+	/** Attributes **/
+
+	private final String task;
+
+	private final double threshold;
+
+	private final RiskListener listener;
+
+	/**
+	 * Last evaluated risk, and its position toward the threshold (updated by the live situation)
+	 */
+	private volatile double risk;
+
+	private volatile boolean above;
+
+
+	/** Methods **/
+
+	RiskSubscription(String task, double threshold, RiskListener listener, double risk)
+	{
+		this.task = task;
+		this.threshold = threshold;
+		this.listener = listener;
+		this.risk = risk;
+		this.above = risk >= threshold;
+	}
+
+	/**
+	 * Record a new evaluation of the risk
+	 * @return true if the threshold was crossed
+	 */
+	boolean update(double risk)
+	{
+		this.risk = risk;
+
+		boolean newAbove = risk >= threshold;
+		if(newAbove != above)
+		{
+			above = newAbove;
+			return true;
+		}
+		return false;
+	}
+
+	public String getTask() {
+		return task;
+	}
+
+	public double getThreshold() {
+		return threshold;
+	}
+
+	public RiskListener getListener() {
+		return listener;
+	}
+
+	/**
+	 * Last evaluated risk of the task
+	 */
+	public double getRisk() {
+		return risk;
+	}
+
+	/**
+	 * True if the last evaluated risk is above (or equal to) the threshold
+	 */
+	public boolean isAbove() {
+		return above;
+	}
+
+	public String toString()
+	{
+		return "RiskSubscription("+task+" "+threshold+") risk="+risk;
+	}
+}
@@ -0,0 +1,205 @@
+package leaf.context;
+
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Hashed timer wheel keeping the expiry date of keys (e.g. observed context data).
+ * Scheduling, refreshing and cancelling a key cost O(1) (each slot is a doubly linked list of its entries);
+ * advancing the wheel only visits the slots of the elapsed ticks.
+ * A refreshed key (later deadline) is not moved right away: it is moved when its old slot is visited.
+ * Not thread safe.
+ * @author Nathan Ramoly
+ *
+ * @param <K> Type of the keys, with consistent equals and hashCode
+ */
+public class TimerWheel<K> {
+
+	/**
+	 * Entry of the wheel, linked to the other entries of its slot
+	 */
+	private static class Entry<K> {
+		K key;
+		long deadline;
+		Entry<K> prev;
+		Entry<K> next;
+
+		/**
+		 * Remove the entry from its slot
+		 */
+		void unlink()
+		{
+			prev.next = next;
+			next.prev = prev;
+			prev = null;
+			next = null;
+		}
+	}
+
+	/** Attributes **/
+
+	/**
+	 * Duration of a tick (ms)
+	 */
+	private final long tick;
+
+	/**
+	 * Head of each slot (sentinel of a circular list, holding no key)
+	 */
+	private final Entry<K>[] slots;
+
+	private final HashMap<K, Entry<K>> entries;
+
+	/**
+	 * Date up to which the wheel was processed (ms, multiple of tick)
+	 */
+	private long current;
+
+
+	/** Methods **/
+
+	/**
+	 * @param tick Duration of a tick (ms), i.e. the precision of the expiry
+	 * @param nbSlots Number of slots (a round of the wheel lasts tick*nbSlots)
+	 */
+	public TimerWheel(long tick, int nbSlots)
+	{
+		this.tick = tick;
+		@SuppressWarnings("unchecked")
+		Entry<K>[] array = (Entry<K>[]) new Entry<?>[nbSlots];
+		slots = array;
+		for(int i=0; i<nbSlots; i++)
+		{
+			slots[i] = new Entry<K>();
+			slots[i].prev = slots[i];
+			slots[i].next = slots[i];
+		}
+		entries = new HashMap<K, Entry<K>>();
+		current = (System.currentTimeMillis()/tick)*tick;
+	}
+
+	private int slotIndex(long date)
+	{
+		return (int)(((date+tick-1)/tick) % slots.length);
+	}
+
+	/**
+	 * Add an entry at the end of the slot of its deadline
+	 */
+	private void place(Entry<K> entry)
+	{
+		Entry<K> head = slots[slotIndex(entry.deadline)];
+		entry.prev = head.prev;
+		entry.next = head;
+		head.prev.next = entry;
+		head.prev = entry;
+	}
+
+	/**
+	 * Set the expiry date (ms) of a key, replacing the previous one
+	 */
+	public void schedule(K key, long deadline)
+	{
+		Entry<K> entry = entries.get(key);
+
+		if(entry == null)
+		{
+			entry = new Entry<K>();
+			entry.key = key;
+			entry.deadline = deadline;
+			entries.put(key, entry);
+			place(entry);
+		}
+		else if(deadline < entry.deadline)
+		{
+			//Sooner: move it now
+			entry.unlink();
+			entry.deadline = deadline;
+			place(entry);
+		}
+		else
+		{
+			//Later: moved when its current slot is visited
+			entry.deadline = deadline;
+		}
+	}
+
+	/**
+	 * Remove a key from the wheel
+	 */
+	public void cancel(K key)
+	{
+		Entry<K> entry = entries.remove(key);
+		if(entry != null)
+		{ entry.unlink(); }
+	}
+
+	/**
+	 * Process the ticks elapsed until now
+	 * @param expired Filled with the keys whose expiry date is passed
+	 */
+	public void advance(long now, List<K> expired)
+	{
+		//After a long pause, a single round is enough to visit every entry
+		long nbTicks = Math.min( (now-current)/tick, slots.length );
+		if(nbTicks <= 0)
+		{ return; }
+
+		long limit = current + ((now-current)/tick)*tick;
+
+		for(long i=1; i<=nbTicks; i++)
+		{
+			Entry<K> head = slots[slotIndex(current + i*tick)];
+			if(head.next == head)
+			{ continue; }
+
+			//Detach the entries of the slot: the ones refreshed may be placed back in it
+			Entry<K> entry = head.next;
+			head.prev.next = null;
+			head.prev = head;
+			head.next = head;
+
+			while(entry != null)
+			{
+				Entry<K> next = entry.next;
+
+				if(entry.deadline <= limit)
+				{
+					entries.remove(entry.key);
+					expired.add(entry.key);
+					entry.prev = null;
+					entry.next = null;
+				}
+				else
+				{
+					place(entry);
+				}
+
+				entry = next;
+			}
+		}
+
+		current = limit;
+	}
+
+	/**
+	 * Number of keys in the wheel
+	 */
+	public int size()
+	{
+		return entries.size();
+	}
+
+	/**
+	 * Remove all keys
+	 */
+	public void clear()
+	{
+		for(Entry<K> head: slots)
+		{
+			head.prev = head;
+			head.next = head;
+		}
+		entries.clear();
+	}
+}
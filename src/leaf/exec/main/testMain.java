@@ -1,11 +1,14 @@
 package leaf.exec.main;
 
 
+import java.util.ArrayList;
 import java.util.HashMap;
 
 import leaf.causes.Extraction;
 import leaf.context.ContextData;
+import leaf.context.ContextDataCounter;
 import leaf.context.LiveSituation;
+import leaf.tools.DataBaseManager;
 
 /**
  * Test/Example class to check how things work and and if they do work
@@ -25,6 +28,8 @@ public class testMain {
 		//testFeedback();
 		
 		testRiskEval();
+		
+		//testObservationCounts();
 	
 	}
 	
@@ -90,8 +95,8 @@ public class testMain {
 	
 	private static void testFeedback()
 	{
-		ContextData cda = new ContextData("katleen", "isDoing", "cooking");
-		ContextData cdb = new ContextData("katleen", "isLocatedIn", "lr1");
+		ContextData cda = ContextData.of("katleen", "isDoing", "cooking");
+		ContextData cdb = ContextData.of("katleen", "isLocatedIn", "lr1");
 		HashMap<ContextData, Double> rewards = new HashMap<ContextData, Double>();
 		rewards.put(cda, 1.0);
 		rewards.put(cdb, 0.0);
@@ -110,4 +115,38 @@ public class testMain {
 		System.out.println( ls.getCurrentTaskRiskStat("doStuff"));
 	}
 	
+	/**
+	 * Check that the counters of a saved situation are moved from success to fail when the task is reported as failed
+	 */
+	private static void testObservationCounts()
+	{
+		String task = "checkCounts"+System.currentTimeMillis();
+		DataBaseManager dbm = DataBaseManager.getInstance();
+		
+		ArrayList<ContextData> cds = new ArrayList<ContextData>();
+		cds.add(ContextData.of("katleen", "isDoing", "cooking"));
+		cds.add(ContextData.of("katleen", "isLocatedIn", "lr1"));
+		
+		LiveSituation ls = new LiveSituation();
+		ls.addData("Katleen", "isDoing", "Cooking");
+		ls.addData("Katleen", "isLocatedIn", "Salon");
+		
+		ls.save(task);
+		ContextDataCounter success = new ContextDataCounter();
+		ContextDataCounter fail = new ContextDataCounter();
+		dbm.getObservationCounts(task, cds, success, fail);
+		System.out.println("After save: success="+success+" fail="+fail);
+		boolean ok = success.get(cds.get(0)) == 1 && fail.get(cds.get(0)) == 0 && success.get(cds.get(1)) == 1 && fail.get(cds.get(1)) == 0;
+		
+		//Reported through another live situation (as after a restart)
+		new LiveSituation().lastTaskFailed();
+		success = new ContextDataCounter();
+		fail = new ContextDataCounter();
+		dbm.getObservationCounts(task, cds, success, fail);
+		System.out.println("After failure: success="+success+" fail="+fail);
+		ok = ok && success.get(cds.get(0)) == 0 && fail.get(cds.get(0)) == 1 && success.get(cds.get(1)) == 0 && fail.get(cds.get(1)) == 1;
+		
+		System.out.println("Observation counts "+(ok ? "OK" : "FAILED"));
+	}
+	
 }
@@ -207,12 +207,12 @@ public class LiveSituationRandomFactory {
 		
 		//Causes
 		//1
-		ContextData sleeping = new ContextData("katleen", "isDoing", "sleeping");
+		ContextData sleeping = ContextData.of("katleen", "isDoing", "sleeping");
 		//2
-		ContextData workingAct = new ContextData("katleen", "isDoing", "working");
-		ContextData workingLoc = new ContextData("katleen", "isLocatedIn", "bed1");
+		ContextData workingAct = ContextData.of("katleen", "isDoing", "working");
+		ContextData workingLoc = ContextData.of("katleen", "isLocatedIn", "bed1");
 		//3
-		ContextData obstacle = new ContextData("chair1", "inFrontOf", "bed"); 
+		ContextData obstacle = ContextData.of("chair1", "inFrontOf", "bed"); 
 		
 		for(ContextData causeToCheck: toCheck)
 		{
@@ -1,31 +1,57 @@
 package leaf.ontology;
 
+import java.io.File;
+import java.io.BufferedReader;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
+import java.io.FileReader;
 import java.io.FileWriter;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
+import org.apache.jena.datatypes.xsd.XSDDatatype;
+import org.apache.jena.graph.Factory;
+import org.apache.jena.graph.Graph;
+import org.apache.jena.graph.GraphEvents;
+import org.apache.jena.graph.GraphListener;
+import org.apache.jena.graph.Node;
+import org.apache.jena.graph.NodeFactory;
+import org.apache.jena.graph.Triple;
+import org.apache.jena.graph.compose.Delta;
 import org.apache.jena.ontology.OntModel;
 import org.apache.jena.ontology.OntModelSpec;
-import org.apache.jena.query.Query;
-import org.apache.jena.query.QueryExecution;
-import org.apache.jena.query.QueryExecutionFactory;
-import org.apache.jena.query.QueryFactory;
-import org.apache.jena.query.QuerySolution;
-import org.apache.jena.query.ResultSet;
 import org.apache.jena.rdf.model.InfModel;
+import org.apache.jena.rdf.model.Model;
 import org.apache.jena.rdf.model.ModelFactory;
+import org.apache.jena.reasoner.InfGraph;
 import org.apache.jena.reasoner.Reasoner;
 import org.apache.jena.reasoner.rulesys.GenericRuleReasoner;
+import org.apache.jena.reasoner.TriplePattern;
+import org.apache.jena.reasoner.rulesys.ClauseEntry;
+import org.apache.jena.reasoner.rulesys.ForwardRuleInfGraphI;
 import org.apache.jena.reasoner.rulesys.Rule;
-import org.apache.jena.update.UpdateAction;
+import org.apache.jena.riot.system.IRIResolver;
+import org.apache.jena.riot.system.PrefixMap;
+import org.apache.jena.riot.system.PrefixMapFactory;
+import org.apache.jena.shared.PrefixMapping;
+import org.apache.jena.sparql.graph.GraphReadOnly;
+import org.apache.jena.sparql.util.NodeFactoryExtra;
+import org.apache.jena.util.iterator.ExtendedIterator;
 import org.apache.jena.vocabulary.OWL;
 import org.apache.jena.vocabulary.RDF;
 import org.apache.jena.vocabulary.RDFS;
 import org.apache.jena.vocabulary.XSD;
 
 import leaf.context.ContextData;
+import leaf.context.ContextDataListener;
+import leaf.context.ContextFrame;
 import leaf.tools.LeafLog;
 
 
@@ -51,13 +77,106 @@ public class Ontology {
 	public static final String RULES = "res/onto/rules.txt";
 	
 	/**
-	 * Prefix for query
+	 * Path to the list of functional properties (in addition to those declared in the structural ontology)
 	 */
-	private static final String PREFIX = "prefix rdf: <" + RDF.getURI() + ">\n" +
-            "prefix owl: <" + OWL.getURI() + ">\n"+
-            "prefix xsd: <"+ XSD.getURI() +"> \n"+
-            "prefix rdfs: <" + RDFS.getURI() + ">\n" +
-            "prefix leaf:<" + "file:/C:/Users/ramol_na/Documents/workspace/LEAF/res/onto/res/onto.owl#" + ">\n" ;
+	public static final String FUNCTIONAL = "res/onto/functional.txt";
+	
+	/**
+	 * Reload the rules when the rule file is modified.
+	 * If false, the rules are compiled only once per process.
+	 */
+	public static final boolean RULESRELOAD = true;
+	
+	/**
+	 * Incremental inference: rules are run by a RETE network in pure forward mode.
+	 * Each added triple only fires the rules whose body it matches.
+	 * The RETE engine does not count the supports of a deduction: on removal, it retracts deductions
+	 * that remaining triples still support. Only the retracted deductions are then checked again, by backward
+	 * chaining from each of them (see rederive()), and restored if still supported.
+	 * If rules are chained (a deduced predicate is matched by a rule), a restored deduction would not fire the rules:
+	 * the deductions are then recomputed (rebind) before the next read of the model (see refreshInference()).
+	 * If false, the default hybrid mode is used (any removal leads to a full re-inference).
+	 */
+	public static final boolean INCREMENTAL = true;
+	
+	/**
+	 * LEAF namespace as written in the ontology files
+	 */
+	private static final String LEAFURI = "file:/C:/Users/ramol_na/Documents/workspace/LEAF/res/onto/res/onto.owl#";
+	
+	/**
+	 * LEAF namespace as resolved in the models (used to build nodes directly)
+	 */
+	public static final String NS = IRIResolver.resolveString(LEAFURI);
+	
+	/**
+	 * Prefixes for parsing single nodes
+	 */
+	private static final PrefixMap PREFIXMAP = PrefixMapFactory.create( PrefixMapping.Factory.create()
+			.setNsPrefix("rdf", RDF.getURI())
+			.setNsPrefix("owl", OWL.getURI())
+			.setNsPrefix("xsd", XSD.getURI())
+			.setNsPrefix("rdfs", RDFS.getURI())
+			.setNsPrefix("leaf", NS) );
+	
+	/**
+	 * Name property, used to identify entities
+	 */
+	private static final Node HASNAME = NodeFactory.createURI(NS + "hasName");
+	
+	private static final Node TYPE = RDF.type.asNode();
+	
+	/**
+	 * Structural ontology parsed once and shared (read only) by all default ontologies.
+	 * Lazily loaded by getBaseGraph().
+	 */
+	private static Graph baseGraph = null;
+	
+	/**
+	 * Named entities of the structural ontology (hasName value -> local name).
+	 * Lazily loaded by getBaseNames().
+	 */
+	private static HashMap<String, String> baseNames = null;
+	
+	/**
+	 * Context data of the structural ontology.
+	 * Lazily loaded by getBaseContextData().
+	 */
+	private static ArrayList<ContextData> baseContextData = null;
+	
+	/**
+	 * Functional properties: a new value replaces the previous one.
+	 * Lazily loaded by getFunctionalNodes().
+	 */
+	private static HashSet<Node> functionalProperties = null;
+	
+	/**
+	 * Reasoner built from the compiled rules, shared by all ontologies.
+	 * Lazily loaded by getReasoner().
+	 */
+	private static Reasoner reasoner = null;
+	
+	/**
+	 * Last modification date of the rule file when the rules were compiled.
+	 */
+	private static long rulesDate = 0;
+	
+	/**
+	 * Predicates appearing in the body of the rules, null if a rule matches any predicate.
+	 * Removing a triple of another predicate can't retract a deduction.
+	 */
+	private static HashSet<Node> rulePredicates = null;
+	
+	/**
+	 * A deduced predicate is matched by a rule (see INCREMENTAL)
+	 */
+	private static boolean chainedRules = false;
+	
+	/**
+	 * Backward reasoner on the same rules, used to check whether a retracted deduction is still supported.
+	 * Lazily loaded along with the reasoner by getReasoner().
+	 */
+	private static Reasoner checkReasoner = null;
 	
 	/**
 	 * Path to the ontology's file
@@ -75,25 +194,91 @@ public class Ontology {
 	 */
 	private InfModel infModel;
 	
+	/**
+	 * Reasoner used to build infModel, used to detect rules reload.
+	 */
+	private Reasoner infReasoner;
+	
+	/**
+	 * Backward inference on the model, to check retracted deductions (see rederive())
+	 */
+	private InfGraph infChecker;
+	
+	/**
+	 * Deductions retracted by the RETE engine since they were last checked (see rederive())
+	 */
+	private ArrayList<Triple> retracted;
+	
+	/**
+	 * Triples were removed from the inferred model since its deductions were computed (see INCREMENTAL)
+	 */
+	private boolean staleInference;
+	
+	/**
+	 * Index of named entities (hasName value -> entity nodes, several entities may have the same name).
+	 * Lazily built by getNamedNodes(), then updated along with the hasName triples (see insert()).
+	 */
+	private HashMap<String, ArrayList<Node>> names;
+	
+	/**
+	 * Modification stamp, incremented once per update (or per frame).
+	 * It allows to know if data extracted from the ontology are still up to date.
+	 */
+	private long version;
+	
+	/**
+	 * Last extracted context data, valid as long as contextDataVersion is the current version
+	 */
+	private ArrayList<ContextData> contextData;
+	
+	private long contextDataVersion;
+	
+	/**
+	 * Receives the changes of the context data (null if none), see setContextDataListener()
+	 */
+	private ContextDataListener cdListener;
+	
+	/**
+	 * Triples currently extracted as context data, and number of such triples by context data (tracked for cdListener)
+	 */
+	private HashSet<Triple> cdTriples;
+	
+	private HashMap<ContextData, Integer> cdCounts;
+	
+	/**
+	 * Triples added or removed (asserted or deduced) since the context data were last checked
+	 */
+	private ArrayList<Triple> touched;
+	
+	/**
+	 * The context data have to be extracted again (e.g. deductions recomputed, names changed)
+	 */
+	private boolean cdResync;
+	
 	
 	/** Methods **/
 	
 	/**
 	 * Default constructor that only load the default structural ontology.
 	 * It can't save it until a file is provided.
+	 * The structural ontology is not parsed again: the model is a copy-on-write overlay (Delta)
+	 * on top of the shared base graph, only the triples of this situation are stored in it.
 	 */
 	public Ontology()
 	{
 		ontoFile = null;
 		infModel = null;
-				
-		try {
-			model = ModelFactory.createOntologyModel( OntModelSpec.OWL_MEM );
-			model.read(new FileInputStream(SOURCE),null,"TTL");
-		} catch (FileNotFoundException e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
-		}
+		staleInference = false;
+		retracted = new ArrayList<Triple>();
+		names = null;
+		version = 0;
+		contextData = null;
+		contextDataVersion = -1;
+		cdListener = null;
+		cdResync = false;
+		
+		model = ModelFactory.createOntologyModel( OntModelSpec.OWL_MEM, 
+				ModelFactory.createModelForGraph( new Delta( getBaseGraph() ) ) );
 		//FileManager.get().readModel( model, SOURCE );
 	}
 	
@@ -104,6 +289,14 @@ public class Ontology {
 	{
 		ontoFile = null;
 		infModel = null;
+		staleInference = false;
+		retracted = new ArrayList<Triple>();
+		names = null;
+		version = 0;
+		contextData = null;
+		contextDataVersion = -1;
+		cdListener = null;
+		cdResync = false;
 		
 		try {
 			model = ModelFactory.createOntologyModel( OntModelSpec.OWL_MEM );
@@ -114,6 +307,72 @@ public class Ontology {
 		}
 	}
 	
+	/**
+	 * Get the shared structural ontology, parse it on first call.
+	 * The graph is read only: situations write in their own overlay.
+	 */
+	private static synchronized Graph getBaseGraph()
+	{
+		if(baseGraph == null)
+		{
+			Graph graph = Factory.createDefaultGraph();
+			
+			try {
+				ModelFactory.createModelForGraph(graph).read(new FileInputStream(SOURCE),null,"TTL");
+			} catch (FileNotFoundException e) {
+				// TODO Auto-generated catch block
+				e.printStackTrace();
+			}
+			
+			baseGraph = new GraphReadOnly(graph);
+		}
+		
+		return baseGraph;
+	}
+	
+	/**
+	 * Get the named entities of the structural ontology, as hasName value -> local name
+	 * (the first entity found for a name is kept). The map must not be modified.
+	 */
+	public static synchronized Map<String, String> getBaseNames()
+	{
+		if(baseNames == null)
+		{
+			baseNames = new HashMap<String, String>();
+			
+			ExtendedIterator<Triple> it = getBaseGraph().find(Node.ANY, HASNAME, Node.ANY);
+			try {
+				while(it.hasNext())
+				{
+					Triple t = it.next();
+					if(t.getObject().isLiteral() && !baseNames.containsKey(t.getObject().getLiteralLexicalForm()))
+					{
+						baseNames.put(t.getObject().getLiteralLexicalForm(), t.getSubject().getLocalName());
+					}
+				}
+			}
+			finally {
+				it.close();
+			}
+		}
+		
+		return baseNames;
+	}
+	
+	/**
+	 * Get the context data of the structural ontology (without rules).
+	 * The list must not be modified.
+	 */
+	public static synchronized ArrayList<ContextData> getBaseContextData()
+	{
+		if(baseContextData == null)
+		{
+			baseContextData = new Ontology().getContextData();
+		}
+		
+		return baseContextData;
+	}
+	
 	/**
 	 * Export the ontology to the current file (overwrite it)
 	 * @throws FileNotFoundException 
@@ -137,6 +396,8 @@ public class Ontology {
 	 */
 	public void export(String path)
 	{
+		refreshInference();
+		
 		FileWriter out = null;
     	try {   		
 			out = new FileWriter( path );
@@ -159,47 +420,477 @@ public class Ontology {
     	}
 	}
 	
+	/**
+	 * Get the functional properties, declared as owl:FunctionalProperty in the structural ontology 
+	 * or listed in the FUNCTIONAL file.
+	 */
+	private static synchronized HashSet<Node> getFunctionalNodes()
+	{
+		if(functionalProperties == null)
+		{
+			functionalProperties = new HashSet<Node>();
+			
+			ExtendedIterator<Triple> it = getBaseGraph().find(Node.ANY, RDF.type.asNode(), OWL.FunctionalProperty.asNode());
+			try {
+				while(it.hasNext())
+				{
+					functionalProperties.add( it.next().getSubject() );
+				}
+			}
+			finally {
+				it.close();
+			}
+			
+			BufferedReader br = null;
+			try {
+				br = new BufferedReader(new FileReader(FUNCTIONAL));
+				String line;
+				while((line = br.readLine()) != null)
+				{
+					line = line.trim();
+					if(!line.isEmpty() && !line.startsWith("#"))
+					{ functionalProperties.add( leafNode(line) ); }
+				}
+			} catch (IOException e) {
+				LeafLog.w("Ontology", "No additional functional properties: "+e.getMessage());
+			}
+			finally {
+				if (br != null) {
+					try {br.close();} catch (IOException ignore) {}
+				}
+			}
+			
+			LeafLog.d("Ontology", "Functional properties: "+functionalProperties);
+		}
+		
+		return functionalProperties;
+	}
+	
+	/**
+	 * Local names of the functional properties
+	 */
+	public static Set<String> getFunctionalProperties()
+	{
+		HashSet<String> ret = new HashSet<String>();
+		
+		for(Node prop: getFunctionalNodes())
+		{
+			ret.add( prop.getLocalName() );
+		}
+		
+		return ret;
+	}
+	
+	/**
+	 * Get the reasoner carrying the compiled rules.
+	 * Rules are parsed only once, or again if the rule file changed (see RULESRELOAD).
+	 */
+	private static synchronized Reasoner getReasoner()
+	{
+		if(reasoner == null || RULESRELOAD)
+		{
+			long date = new File(RULES).lastModified();
+			
+			if(reasoner == null || date != rulesDate)
+			{
+				LeafLog.i("Ontology", "Compiling rules from "+RULES);
+				List<Rule> rules = Rule.rulesFromURL( RULES );
+				GenericRuleReasoner ruleReasoner = new GenericRuleReasoner( rules );
+				rulePredicates = getBodyPredicates(rules);
+				chainedRules = isChained(rules, rulePredicates);
+				GenericRuleReasoner backward = new GenericRuleReasoner( rules );
+				backward.setMode(GenericRuleReasoner.BACKWARD);
+				checkReasoner = backward;
+				if(INCREMENTAL)
+				{ ruleReasoner.setMode(GenericRuleReasoner.FORWARD_RETE); }
+				reasoner = ruleReasoner;
+				rulesDate = date;
+			}
+		}
+		
+		return reasoner;
+	}
+	
+    /**
+     * Predicates appearing in the body of rules, null if one is a variable
+     */
+    private static HashSet<Node> getBodyPredicates(List<Rule> rules)
+    {
+    	HashSet<Node> ret = new HashSet<Node>();
+    	
+    	for(Rule rule: rules)
+    	{
+    		for(ClauseEntry clause: rule.getBody())
+    		{
+    			if(clause instanceof TriplePattern)
+    			{
+    				Node predicate = ((TriplePattern) clause).getPredicate();
+    				if(!predicate.isConcrete())
+    				{ return null; }
+    				ret.add(predicate);
+    			}
+    		}
+    	}
+    	
+    	return ret;
+    }
+    
+    /**
+     * True if a predicate deduced by a rule may be matched by a rule
+     */
+    private static boolean isChained(List<Rule> rules, HashSet<Node> bodyPredicates)
+    {
+    	if(bodyPredicates == null)
+    	{ return true; }
+    	
+    	for(Rule rule: rules)
+    	{
+    		for(ClauseEntry clause: rule.getHead())
+    		{
+    			if(clause instanceof TriplePattern)
+    			{
+    				Node predicate = ((TriplePattern) clause).getPredicate();
+    				if(!predicate.isConcrete() || bodyPredicates.contains(predicate))
+    				{ return true; }
+    			}
+    			else if(clause instanceof Rule)
+    			{ return true; }
+    		}
+    	}
+    	
+    	return false;
+    }
+    
+    private static synchronized boolean isRulePredicate(Node predicate)
+    {
+    	return rulePredicates == null || rulePredicates.contains(predicate);
+    }
+    
+    private static synchronized boolean isChainedRules()
+    {
+    	return chainedRules;
+    }
+    
+    private static synchronized Reasoner getCheckReasoner()
+    {
+    	return checkReasoner;
+    }
+    
     /**
      * Apply rules for activity recognition
+     * The inferred model is built only once: it is then kept alive and updated along with the model
+     * (triples are added through it). It is rebuilt only if the rules were reloaded.
      */
     public void applyRules()
     {
-    	LeafLog.m("Ontology", "Applying rules...");
+    	Reasoner curReasoner = getReasoner();
     	
-    	Reasoner reasoner = new GenericRuleReasoner( Rule.rulesFromURL( RULES ) );
+    	if(infModel == null || infReasoner != curReasoner)
+    	{
+    		LeafLog.m("Ontology", "Applying rules...");
+    		
+    		infModel = ModelFactory.createInfModel( curReasoner, model );
+    		infReasoner = curReasoner;
+    		infChecker = getCheckReasoner().bind( model.getGraph() );
+    		staleInference = false;
+    		retracted.clear();
+    		version++;
+    		
+    		listenDeductions();
+    		if(cdListener != null)
+    		{ resyncContextData(); }
+    	}
+    	else
+    	{ refreshInference(); }
+    }
+    
+    /**
+     * Recompute the deductions if triples were removed since they were computed and rules are chained:
+     * the RETE engine may have retracted deductions still supported by the remaining triples (see INCREMENTAL).
+     */
+    private void refreshInference()
+    {
+    	if(staleInference)
+    	{
+    		LeafLog.m("Ontology", "Recomputing deductions after removals...");
+    		
+    		infModel.rebind();
+    		staleInference = false;
+    		syncContextData();
+    	}
+    }
+    
+    /**
+     * Record the removal of a triple from the working model (only a triple matched by a rule can retract deductions)
+     */
+    private void removed(Triple t)
+    {
+    	if(infModel != null && INCREMENTAL && isRulePredicate(t.getPredicate()) && isChainedRules())
+    	{ staleInference = true; }
+    }
+    
+    /**
+     * Restore the retracted deductions still supported by the remaining triples (see INCREMENTAL):
+     * each one is checked by backward chaining from it, only the triples around it are read.
+     */
+    private void rederive()
+    {
+    	if(retracted.isEmpty())
+    	{ return; }
+    	
+    	ArrayList<Triple> deductions = new ArrayList<Triple>(retracted);
+    	retracted.clear();
+    	
+    	if(staleInference)
+    	{ return; }
+    	
+    	ForwardRuleInfGraphI graph = (ForwardRuleInfGraphI) infModel.getGraph();
+    	for(Triple t: deductions)
+    	{
+    		if(!graph.contains(t) && infChecker.contains(t))
+    		{ graph.addDeduction(t); }
+    	}
+    }
+    
+    /**
+     * Model to update: once rules are applied, updates go through the inferred model so
+     * that inference follows incrementally.
+     */
+    private Model getWorkingModel()
+    {
+    	if(infModel == null)
+    	{ return model; }
+    	else
+    	{ return infModel; }
+    }
+    
+    /**
+     * Get the entities having the given name (empty if none), the list must not be modified.
+     * The hasName index is built on first call.
+     */
+    private List<Node> getNamedNodes(String name)
+    {
+    	if(names == null)
+    	{
+    		names = new HashMap<String, ArrayList<Node>>();
+    		
+    		ExtendedIterator<Triple> it = model.getGraph().find(Node.ANY, HASNAME, Node.ANY);
+    		try {
+    			while(it.hasNext())
+    			{
+    				indexName( it.next() );
+    			}
+    		}
+    		finally {
+    			it.close();
+    		}
+    	}
+    	
+    	List<Node> ret = names.get(name);
+    	if(ret == null)
+    	{ return Collections.emptyList(); }
+    	return ret;
+    }
+    
+    /**
+     * Add a hasName triple to the index
+     */
+    private void indexName(Triple t)
+    {
+    	if(t.getObject().isLiteral())
+    	{
+    		ArrayList<Node> nodes = names.get(t.getObject().getLiteralLexicalForm());
+    		if(nodes == null)
+    		{
+    			nodes = new ArrayList<Node>(1);
+    			names.put(t.getObject().getLiteralLexicalForm(), nodes);
+    		}
+    		if(!nodes.contains(t.getSubject()))
+    		{ nodes.add(t.getSubject()); }
+    	}
+    }
+    
+    /**
+     * Remove a hasName triple from the index
+     */
+    private void unindexName(Triple t)
+    {
+    	if(t.getObject().isLiteral())
+    	{
+    		ArrayList<Node> nodes = names.get(t.getObject().getLiteralLexicalForm());
+    		if(nodes != null)
+    		{
+    			nodes.remove(t.getSubject());
+    			if(nodes.isEmpty())
+    			{ names.remove(t.getObject().getLiteralLexicalForm()); }
+    		}
+    	}
+    }
+    
+    /**
+     * Keep the hasName index up to date with an added (or removed) triple
+     */
+    private void named(Triple t, boolean added)
+    {
+    	if(names != null && t.getPredicate().equals(HASNAME))
+    	{
+    		if(added)
+    		{ indexName(t); }
+    		else
+    		{ unindexName(t); }
+    	}
+    }
+    
+    /**
+     * Node of a LEAF property or individual
+     */
+    private static Node leafNode(String localName)
+    {
+    	return NodeFactory.createURI(NS + localName);
+    }
+    
+    /**
+     * Node of a value written as in SPARQL (unquoted numbers, prefixed names...)
+     * Integers, the most common sensor values, are built without parsing.
+     */
+    private static Node valueNode(String value)
+    {
+    	if(isInteger(value))
+    	{ return NodeFactory.createLiteral(value, XSDDatatype.XSDinteger); }
+    	else
+    	{ return NodeFactoryExtra.parseNode(value, PREFIXMAP); }
+    }
+    
+    /**
+     * True if a value written as in SPARQL (see updateProperty()) can be parsed into a node.
+     * Used to reject malformed values received from the network before they reach the model.
+     */
+    public static boolean isValidValue(String value)
+    {
+    	try {
+    		valueNode(value);
+    		return true;
+    	} catch (RuntimeException e) {
+    		return false;
+    	}
+    }
+    
+    private static boolean isInteger(String value)
+    {
+    	int start = 0;
+    	if(value.length() > 1 && (value.charAt(0) == '-' || value.charAt(0) == '+'))
+    	{ start = 1; }
+    	
+    	if(start >= value.length())
+    	{ return false; }
+    	
+    	for(int i=start; i<value.length(); i++)
+    	{
+    		if(value.charAt(i) < '0' || value.charAt(i) > '9')
+    		{ return false; }
+    	}
+    	return true;
+    }
+    
+    /**
+     * Add a triple to the working model.
+     * For a functional property, previous values of the subject are removed (upsert): the model stays
+     * proportional to the observed state, not to the number of updates.
+     */
+    private void insert(Triple t)
+    {
+    	Graph graph = getWorkingModel().getGraph();
+    	
+    	if(getFunctionalNodes().contains(t.getPredicate()))
+    	{
+    		//Old values are read from the asserted data only
+    		ArrayList<Triple> oldTriples = new ArrayList<Triple>();
+    		ExtendedIterator<Triple> it = model.getGraph().find(t.getSubject(), t.getPredicate(), Node.ANY);
+    		try {
+    			while(it.hasNext())
+    			{
+    				Triple old = it.next();
+    				if(!old.equals(t))
+    				{ oldTriples.add(old); }
+    			}
+    		}
+    		finally {
+    			it.close();
+    		}
+    		
+    		for(Triple old: oldTriples)
+    		{
+    			graph.delete(old);
+    			removed(old);
+    			named(old, false);
+    			touched(old);
+    		}
+    	}
     	
-    	infModel = ModelFactory.createInfModel( reasoner, model );
+    	//An asserted triple is not added again: the RETE engine would count its matches twice
+    	if(!model.getGraph().contains(t))
+    	{
+    		graph.add(t);
+    		named(t, true);
+    		touched(t);
+    	}
+    	rederive();
+    	syncContextData();
     }
     
     /**
      * Add a triple into the ontology
+     * Subject, predicate and object are written as in SPARQL (e.g. leaf:bed)
      */
     public void update( String subject, String predicate, String object)
     {
     	LeafLog.m("Ontology", "Updating context ontology..."); 
     	
-    	String query = PREFIX + "insert data {"+subject+" "+predicate+" "+object+"}";
-    	
     	LeafLog.d("Ontology", "insert data {"+subject+" "+predicate+" "+object+"}"); 
     	
-    	UpdateAction.parseExecute(query, model);
+    	Triple t = Triple.create( valueNode(subject), valueNode(predicate), valueNode(object) );
+    	
+    	insert(t);
+    	version++;
     }
     
     /**
      * Add a triple concerning an entity having the name given in parameter with a property (predicate) and another object
-     * 
+     * Both entities are resolved through the hasName index, nothing is added if one is unknown.
+     * As the insert query it replaces, the triple is added for each entity having the name (and each object).
      */
     public void updateEntity(String name, String property, String object)
     {
     	LeafLog.i("Ontology", "Updating context ontology..."); 
-        	
-       	String query = PREFIX + "insert {?subj leaf:"+property+" ?obj } ";
-    	query += "where{ ?subj leaf:hasName '"+name+"' . ?obj leaf:hasName '"+object+"'}";
     	
     	LeafLog.d("Ontology", "insert {?subj leaf:"+property+" ?obj } where..."); 
     	
-    	UpdateAction.parseExecute(query, model);
+    	List<Node> subjs = getNamedNodes(name);
+    	List<Node> objs = getNamedNodes(object);
     	
+    	if(!subjs.isEmpty() && !objs.isEmpty())
+    	{
+    		for(Triple t: namedTriples(subjs, property, objs))
+    		{ insert(t); }
+    		version++;
+    	}
+    }
+    
+    /**
+     * Triples between all the entities of both lists (copied first: inserting hasName triples updates the index)
+     */
+    private static ArrayList<Triple> namedTriples(List<Node> subjs, String property, List<Node> objs)
+    {
+    	ArrayList<Triple> ret = new ArrayList<Triple>(subjs.size()*objs.size());
+    	Node prop = leafNode(property);
+    	
+    	for(Node subj: subjs)
+    	{
+    		for(Node obj: objs)
+    		{ ret.add( Triple.create(subj, prop, obj) ); }
+    	}
+    	
+    	return ret;
     }
     
     /**
@@ -212,58 +903,356 @@ public class Ontology {
     {
     	LeafLog.i("Ontology", "Updating context ontology..."); 
     	
-    	String query = PREFIX + "insert data {leaf:"+subject+" leaf:"+property+" "+value+"}";
-    	
     	LeafLog.d("Ontology", "insert data {leaf:"+subject+" leaf:"+property+" "+value+"}"); 
     	
-    	UpdateAction.parseExecute(query, model);
+    	insert( Triple.create(leafNode(subject), leafNode(property), valueNode(value)) );
+    	version++;
+    }
+    
+    /**
+     * Add all the triples of a frame in one operation.
+     * All nodes are resolved before the graph is touched: if a value can't be parsed, its triple is skipped (nothing is added for it)
+     * and the others are added. Unknown named entities are skipped as in updateEntity. The version is incremented once.
+     */
+    public void updateFrame(ContextFrame frame)
+    {
+    	LeafLog.i("Ontology", "Updating context ontology with "+frame.size()+" triples..."); 
+    	
+    	ArrayList<Triple> triples = new ArrayList<Triple>(frame.size());
+    	
+    	for(int i=0; i<frame.size(); i++)
+    	{
+    		if(frame.isRaw(i))
+    		{
+    			try {
+    				triples.add( Triple.create(leafNode(frame.getEntity(i)), leafNode(frame.getProperty(i)), valueNode(frame.getValue(i))) );
+    			} catch(RuntimeException e) {
+    				LeafLog.w("Ontology", "Unparsable value skipped: leaf:"+frame.getEntity(i)+" leaf:"+frame.getProperty(i)+" "+frame.getValue(i));
+    			}
+    		}
+    		else
+    		{
+    			triples.addAll( namedTriples(getNamedNodes(frame.getEntity(i)), frame.getProperty(i), getNamedNodes(frame.getValue(i))) );
+    		}
+    	}
+    	
+    	//In order: for functional properties the last value wins
+    	for(Triple t: triples)
+    	{
+    		insert(t);
+    	}
+    	version++;
+    }
+    
+    /**
+     * Remove an asserted triple from the working model (nothing is done if it is not asserted)
+     */
+    private void delete(Triple t)
+    {
+    	if(model.getGraph().contains(t))
+    	{
+    		getWorkingModel().getGraph().delete(t);
+    		removed(t);
+    		named(t, false);
+    		touched(t);
+    		rederive();
+    		syncContextData();
+    		version++;
+    	}
+    }
+    
+    /**
+     * Remove a triple concerning an entity having the name given in parameter with a property (predicate) and another object
+     * Deductions relying on it are retracted (see INCREMENTAL).
+     */
+    public void removeEntity(String name, String property, String object)
+    {
+    	LeafLog.i("Ontology", "Removing from context ontology..."); 
+    	
+    	LeafLog.d("Ontology", "delete {?subj leaf:"+property+" ?obj } where..."); 
+    	
+    	for(Triple t: namedTriples(getNamedNodes(name), property, getNamedNodes(object)))
+    	{
+    		delete(t);
+    	}
+    }
+    
+    /**
+     * Remove a data property (i.e. literal for a given entity)
+     * Caution: value is not quoted
+     */
+    public void removeProperty(String subject, String property, String value)
+    {
+    	LeafLog.i("Ontology", "Removing from context ontology..."); 
+    	
+    	LeafLog.d("Ontology", "delete data {leaf:"+subject+" leaf:"+property+" "+value+"}"); 
+    	
+    	delete( Triple.create(leafNode(subject), leafNode(property), valueNode(value)) );
+    }
+    
+    /**
+     * Modification stamp of the ontology
+     */
+    public long getVersion()
+    {
+    	return version;
     }
     
     /**
      * Get all the context info carried by the ontology as a set of triple
      * It returns only triple whose subject has a hasName property: it returns only the actual context data
+     * (object must be named as well, and type relations are excluded)
+     * The graph is traversed directly from the named entities. The result is kept until the next modification
+     * (see version): the returned list is shared and must not be modified.
      */
     public ArrayList<ContextData> getContextData()
     {
+    	if(contextData != null && contextDataVersion == version)
+    	{ return contextData; }
+    	
     	//LeafLog.m("Ontology", "Extracting all context data of the ontology");
     	
     	ArrayList<ContextData> ret = new ArrayList<ContextData>();
     	
-       	String queryStr = PREFIX + "select distinct ?subj ?pred ?obj ";
-    	queryStr += "where{ ?subj leaf:hasName ?a .  ?subj ?pred ?obj . ?obj leaf:hasName ?b"
-    			+ " filter not exists { ?subj rdf:type ?obj } ."
-    			+ " filter not exists { ?subj leaf:hasName ?obj }  }"; //Remove this filter if name is to be taken into account
-    	
-    	 Query query = QueryFactory.create( queryStr );
-         QueryExecution qexec;
-         if(infModel == null) //If non inferred data, use standard model
-		 { qexec = QueryExecutionFactory.create( query, model ); }
-         else
-         { qexec = QueryExecutionFactory.create( query, infModel );}
-         
-         try {
-             ResultSet results = qexec.execSelect();              
-             while (results.hasNext()) {
-            	 QuerySolution solution = results.next(); 
-            	 
-            	 //ret.add( new Triple(solution.get("subj").asNode(), solution.get("pred").asNode(), solution.get("obj").asNode() ) );
-            	
-            	 String subj = solution.get("subj").asResource().getLocalName();
-            	 String pred = solution.get("pred").asResource().getLocalName();
-            	 String obj;
-            	 if(solution.get("obj").isLiteral())
-            	 { obj = solution.get("obj").asLiteral().getString(); }
-            	 else
-            	 { obj = solution.get("obj").asResource().getLocalName();}
-            	 
-            	 ret.add(new ContextData( subj, pred,  obj) );
-             }
-         }
-         finally {
-             qexec.close();
-         }
+    	//If non inferred data, use standard model
+    	refreshInference();
+    	
+    	for(Triple t: getContextTriples())
+    	{
+    		ret.add( toContextData(t) );
+    	}
+    	
+    	contextData = ret;
+    	contextDataVersion = version;
     	
     	return ret;
     }
     
+    /**
+     * Triples of the working model that are context data (see getContextData())
+     */
+    private ArrayList<Triple> getContextTriples()
+    {
+    	ArrayList<Triple> ret = new ArrayList<Triple>();
+    	Graph graph = getWorkingModel().getGraph();
+    	
+    	//Named entities (only resources have a local name, blank nodes are ignored)
+    	HashSet<Node> named = new HashSet<Node>();
+    	ExtendedIterator<Triple> itNames = graph.find(Node.ANY, HASNAME, Node.ANY);
+    	try {
+    		while(itNames.hasNext())
+    		{
+    			Node subj = itNames.next().getSubject();
+    			if(subj.isURI())
+    			{ named.add(subj); }
+    		}
+    	}
+    	finally {
+    		itNames.close();
+    	}
+    	
+    	//Relations between named entities
+    	for(Node subj: named)
+    	{
+    		ExtendedIterator<Triple> it = graph.find(subj, Node.ANY, Node.ANY);
+    		try {
+    			while(it.hasNext())
+    			{
+    				Triple t = it.next();
+    				Node obj = t.getObject();
+    				
+    				if(obj.isURI() && named.contains(obj) && !graph.contains(subj, TYPE, obj))
+    				{
+    					ret.add(t);
+    				}
+    			}
+    		}
+    		finally {
+    			it.close();
+    		}
+    	}
+    	
+    	return ret;
+    }
+    
+    private static ContextData toContextData(Triple t)
+    {
+    	return ContextData.of( t.getSubject().getLocalName(), t.getPredicate().getLocalName(), t.getObject().getLocalName() );
+    }
+    
+    /**
+     * True if a triple of the working model is a context data (see getContextData()), checked with indexed lookups only
+     */
+    private static boolean isContextTriple(Graph graph, Triple t)
+    {
+    	Node subj = t.getSubject();
+    	Node obj = t.getObject();
+    	
+    	return subj.isURI() && obj.isURI() && isNamed(graph, subj) && isNamed(graph, obj) && !graph.contains(subj, TYPE, obj);
+    }
+    
+    private static boolean isNamed(Graph graph, Node node)
+    {
+    	return node.isURI() && graph.contains(node, HASNAME, Node.ANY);
+    }
+    
+    /**
+     * Set the listener of the context data: it is notified of the context data currently observed, then of each context data
+     * that appears or disappears, as triples (asserted or deduced) are added or retracted.
+     * A context data is checked with a few indexed lookups when one of its triples is added or retracted: the ontology is
+     * traversed again only when this is not enough (names or types of named entities changed, deductions recomputed,
+     * or inference not in INCREMENTAL mode).
+     */
+    public void setContextDataListener(ContextDataListener listener)
+    {
+    	cdListener = listener;
+    	cdTriples = new HashSet<Triple>();
+    	cdCounts = new HashMap<ContextData, Integer>();
+    	touched = new ArrayList<Triple>();
+    	
+    	if(listener != null)
+    	{ resyncContextData(); }
+    }
+    
+    /**
+     * Record the triples deduced or retracted by the rules (retracted ones are checked again, see rederive())
+     */
+    private void listenDeductions()
+    {
+    	((InfGraph) infModel.getGraph()).getDeductionsGraph().getEventManager().register( new GraphListener() {
+    		
+    		@Override
+    		public void notifyAddTriple(Graph g, Triple t) { touched(t); }
+    		
+    		@Override
+    		public void notifyDeleteTriple(Graph g, Triple t)
+    		{
+    			touched(t);
+    			if(INCREMENTAL)
+    			{ retracted.add(t); }
+    		}
+    		
+    		@Override
+    		public void notifyAddArray(Graph g, Triple[] triples) { cdResync = true; }
+    		
+    		@Override
+    		public void notifyAddList(Graph g, List<Triple> triples) { cdResync = true; }
+    		
+    		@Override
+    		public void notifyAddIterator(Graph g, Iterator<Triple> it) { cdResync = true; }
+    		
+    		@Override
+    		public void notifyAddGraph(Graph g, Graph added) { cdResync = true; }
+    		
+    		@Override
+    		public void notifyDeleteArray(Graph g, Triple[] triples) { cdResync = true; }
+    		
+    		@Override
+    		public void notifyDeleteList(Graph g, List<Triple> triples) { cdResync = true; }
+    		
+    		@Override
+    		public void notifyDeleteIterator(Graph g, Iterator<Triple> it) { cdResync = true; }
+    		
+    		@Override
+    		public void notifyDeleteGraph(Graph g, Graph removed) { cdResync = true; }
+    		
+    		@Override
+    		public void notifyEvent(Graph g, Object value)
+    		{
+    			//Deductions cleared (rebind)
+    			if(value != GraphEvents.startRead && value != GraphEvents.finishRead)
+    			{ cdResync = true; }
+    		}
+    	});
+    }
+    
+    /**
+     * Record a triple added or removed, its context data is checked by syncContextData()
+     */
+    private void touched(Triple t)
+    {
+    	if(cdListener != null)
+    	{ touched.add(t); }
+    }
+    
+    /**
+     * Notify the listener of the context data that changed with the triples touched since the last call
+     */
+    private void syncContextData()
+    {
+    	if(cdListener == null)
+    	{ return; }
+    	
+    	//Without RETE, deductions are recomputed lazily: they can't be followed
+    	if(cdResync || (infModel != null && !INCREMENTAL && !touched.isEmpty()))
+    	{
+    		resyncContextData();
+    		return;
+    	}
+    	
+    	Graph graph = getWorkingModel().getGraph();
+    	
+    	for(Triple t: touched)
+    	{
+    		//Names and types of named entities change the context data of other triples
+    		if(t.getPredicate().equals(HASNAME) || (t.getPredicate().equals(TYPE) && isNamed(graph, t.getSubject()) && isNamed(graph, t.getObject())))
+    		{
+    			resyncContextData();
+    			return;
+    		}
+    		
+    		boolean present = graph.contains(t) && isContextTriple(graph, t);
+    		if(present && cdTriples.add(t))
+    		{ count(t, 1); }
+    		else if(!present && cdTriples.remove(t))
+    		{ count(t, -1); }
+    	}
+    	
+    	touched.clear();
+    }
+    
+    /**
+     * Extract all the context data again, and notify the listener of the differences with the previous ones
+     */
+    private void resyncContextData()
+    {
+    	touched.clear();
+    	cdResync = false;
+    	
+    	HashSet<Triple> newTriples = new HashSet<Triple>(getContextTriples());
+    	
+    	for(Triple t: cdTriples)
+    	{
+    		if(!newTriples.contains(t))
+    		{ count(t, -1); }
+    	}
+    	for(Triple t: newTriples)
+    	{
+    		if(!cdTriples.contains(t))
+    		{ count(t, 1); }
+    	}
+    	
+    	cdTriples = newTriples;
+    }
+    
+    /**
+     * Count (or uncount) a triple of a context data, the listener is notified when its first triple appears or its last one disappears
+     */
+    private void count(Triple t, int n)
+    {
+    	ContextData cd = toContextData(t);
+    	Integer old = cdCounts.get(cd);
+    	int count = (old == null ? 0 : old) + n;
+    	
+    	if(count == 0)
+    	{ cdCounts.remove(cd); }
+    	else
+    	{ cdCounts.put(cd, count); }
+    	
+    	if(old == null)
+    	{ cdListener.contextDataChanged(cd, true); }
+    	else if(count == 0)
+    	{ cdListener.contextDataChanged(cd, false); }
+    }
+    
 }
@@ -0,0 +1,435 @@
+package leaf.tools;
+
+import java.util.Arrays;
+
+/**
+ * Compressed set of non negative integers (e.g. ids of situations of the history), in the manner of Roaring bitmaps:
+ * the integers are grouped by their 16 high bits, each group is stored in a container according to its density,
+ * either a sorted array of the 16 low bits (up to ARRAYMAX values) or a bitmap of 2^16 bits.
+ * The cardinality of an intersection is computed without building the intersection (see andCardinality()).
+ * Not thread safe.
+ * @author Nathan Ramoly
+ *
+ */
+public class CompressedBitmap {
+
+	/** Attributes **/
+
+	/**
+	 * Maximum number of values of an array container, a bitmap container is more compact above
+	 */
+	private static final int ARRAYMAX = 4096;
+
+	/**
+	 * 16 high bits of the containers, sorted
+	 */
+	private char[] keys;
+
+	private Container[] containers;
+
+	/**
+	 * Number of containers
+	 */
+	private int size;
+
+
+	/** Containers **/
+
+	private static abstract class Container {
+
+		/**
+		 * Add a value, return the container to use from now on (converted if needed)
+		 */
+		abstract Container add(char low);
+
+		/**
+		 * Remove a value, return the container to use from now on (converted if needed)
+		 */
+		abstract Container remove(char low);
+
+		abstract boolean contains(char low);
+
+		abstract int cardinality();
+
+		abstract int andCardinality(Container other);
+
+		/**
+		 * Intersection, null if empty
+		 */
+		abstract Container and(Container other);
+	}
+
+	/**
+	 * Sparse container: sorted values
+	 */
+	private static final class ArrayContainer extends Container {
+
+		char[] values = new char[4];
+
+		int card = 0;
+
+		Container add(char low)
+		{
+			int pos = Arrays.binarySearch(values, 0, card, low);
+			if(pos >= 0)
+			{ return this; }
+
+			if(card == ARRAYMAX)
+			{ return toBitmap().add(low); }
+
+			pos = -pos-1;
+			if(card == values.length)
+			{ values = Arrays.copyOf(values, Math.min(values.length*2, ARRAYMAX)); }
+			System.arraycopy(values, pos, values, pos+1, card-pos);
+			values[pos] = low;
+			card++;
+
+			return this;
+		}
+
+		Container remove(char low)
+		{
+			int pos = Arrays.binarySearch(values, 0, card, low);
+			if(pos >= 0)
+			{
+				System.arraycopy(values, pos+1, values, pos, card-pos-1);
+				card--;
+			}
+			return this;
+		}
+
+		boolean contains(char low)
+		{
+			return Arrays.binarySearch(values, 0, card, low) >= 0;
+		}
+
+		int cardinality()
+		{
+			return card;
+		}
+
+		int andCardinality(Container other)
+		{
+			int ret = 0;
+
+			if(other instanceof ArrayContainer)
+			{
+				//Merge of the sorted values
+				ArrayContainer array = (ArrayContainer) other;
+				int i = 0, j = 0;
+				while(i < card && j < array.card)
+				{
+					if(values[i] < array.values[j])
+					{ i++; }
+					else if(values[i] > array.values[j])
+					{ j++; }
+					else
+					{ ret++; i++; j++; }
+				}
+			}
+			else
+			{
+				for(int i=0; i<card; i++)
+				{
+					if(other.contains(values[i]))
+					{ ret++; }
+				}
+			}
+
+			return ret;
+		}
+
+		Container and(Container other)
+		{
+			ArrayContainer ret = new ArrayContainer();
+			ret.values = new char[Math.min(card, other.cardinality())];
+
+			if(other instanceof ArrayContainer)
+			{
+				//Merge of the sorted values
+				ArrayContainer array = (ArrayContainer) other;
+				int i = 0, j = 0;
+				while(i < card && j < array.card)
+				{
+					if(values[i] < array.values[j])
+					{ i++; }
+					else if(values[i] > array.values[j])
+					{ j++; }
+					else
+					{ ret.values[ret.card++] = values[i]; i++; j++; }
+				}
+			}
+			else
+			{
+				for(int i=0; i<card; i++)
+				{
+					if(other.contains(values[i]))
+					{ ret.values[ret.card++] = values[i]; }
+				}
+			}
+
+			if(ret.card == 0)
+			{ return null; }
+			return ret;
+		}
+
+		BitmapContainer toBitmap()
+		{
+			BitmapContainer bitmap = new BitmapContainer();
+			for(int i=0; i<card; i++)
+			{ bitmap.add(values[i]); }
+			return bitmap;
+		}
+	}
+
+	/**
+	 * Dense container: 2^16 bits
+	 */
+	private static final class BitmapContainer extends Container {
+
+		final long[] words = new long[1024];
+
+		int card = 0;
+
+		Container add(char low)
+		{
+			long bit = 1L << low;
+			if((words[low >>> 6] & bit) == 0)
+			{
+				words[low >>> 6] |= bit;
+				card++;
+			}
+			return this;
+		}
+
+		Container remove(char low)
+		{
+			long bit = 1L << low;
+			if((words[low >>> 6] & bit) != 0)
+			{
+				words[low >>> 6] &= ~bit;
+				card--;
+
+				if(card <= ARRAYMAX)
+				{ return toArray(); }
+			}
+			return this;
+		}
+
+		boolean contains(char low)
+		{
+			return (words[low >>> 6] & (1L << low)) != 0;
+		}
+
+		int cardinality()
+		{
+			return card;
+		}
+
+		int andCardinality(Container other)
+		{
+			if(other instanceof ArrayContainer)
+			{ return other.andCardinality(this); }
+
+			long[] otherWords = ((BitmapContainer) other).words;
+			int ret = 0;
+			for(int i=0; i<words.length; i++)
+			{ ret += Long.bitCount(words[i] & otherWords[i]); }
+
+			return ret;
+		}
+
+		Container and(Container other)
+		{
+			if(other instanceof ArrayContainer)
+			{ return other.and(this); }
+
+			long[] otherWords = ((BitmapContainer) other).words;
+			BitmapContainer ret = new BitmapContainer();
+			for(int i=0; i<words.length; i++)
+			{
+				ret.words[i] = words[i] & otherWords[i];
+				ret.card += Long.bitCount(ret.words[i]);
+			}
+
+			if(ret.card == 0)
+			{ return null; }
+			else if(ret.card <= ARRAYMAX)
+			{ return ret.toArray(); }
+			return ret;
+		}
+
+		ArrayContainer toArray()
+		{
+			ArrayContainer array = new ArrayContainer();
+			array.values = new char[card];
+			for(int i=0; i<words.length; i++)
+			{
+				long word = words[i];
+				while(word != 0)
+				{
+					array.values[array.card++] = (char) (i*64 + Long.numberOfTrailingZeros(word));
+					word &= word-1;
+				}
+			}
+			return array;
+		}
+	}
+
+
+	/** Methods **/
+
+	public CompressedBitmap()
+	{
+		keys = new char[4];
+		containers = new Container[4];
+		size = 0;
+	}
+
+	/**
+	 * Add a value (non negative)
+	 */
+	public void add(int value)
+	{
+		char high = (char) (value >>> 16);
+		int pos = find(high);
+
+		if(pos < 0)
+		{
+			//New container
+			pos = -pos-1;
+			if(size == keys.length)
+			{
+				keys = Arrays.copyOf(keys, size*2);
+				containers = Arrays.copyOf(containers, size*2);
+			}
+			System.arraycopy(keys, pos, keys, pos+1, size-pos);
+			System.arraycopy(containers, pos, containers, pos+1, size-pos);
+			keys[pos] = high;
+			containers[pos] = new ArrayContainer();
+			size++;
+		}
+
+		containers[pos] = containers[pos].add((char) value);
+	}
+
+	/**
+	 * Remove a value
+	 */
+	public void remove(int value)
+	{
+		int pos = find((char) (value >>> 16));
+		if(pos < 0)
+		{ return; }
+
+		containers[pos] = containers[pos].remove((char) value);
+
+		//Remove empty container
+		if(containers[pos].cardinality() == 0)
+		{
+			System.arraycopy(keys, pos+1, keys, pos, size-pos-1);
+			System.arraycopy(containers, pos+1, containers, pos, size-pos-1);
+			size--;
+			containers[size] = null;
+		}
+	}
+
+	public boolean contains(int value)
+	{
+		int pos = find((char) (value >>> 16));
+		return pos >= 0 && containers[pos].contains((char) value);
+	}
+
+	/**
+	 * Number of values
+	 */
+	public int cardinality()
+	{
+		int ret = 0;
+		for(int i=0; i<size; i++)
+		{ ret += containers[i].cardinality(); }
+		return ret;
+	}
+
+	/**
+	 * Number of values in both bitmaps
+	 */
+	public int andCardinality(CompressedBitmap other)
+	{
+		int ret = 0;
+
+		//Merge of the sorted keys
+		int i = 0, j = 0;
+		while(i < size && j < other.size)
+		{
+			if(keys[i] < other.keys[j])
+			{ i++; }
+			else if(keys[i] > other.keys[j])
+			{ j++; }
+			else
+			{
+				ret += containers[i].andCardinality(other.containers[j]);
+				i++;
+				j++;
+			}
+		}
+
+		return ret;
+	}
+
+	/**
+	 * Intersection of both bitmaps (a new bitmap)
+	 */
+	public CompressedBitmap and(CompressedBitmap other)
+	{
+		CompressedBitmap ret = new CompressedBitmap();
+
+		//Merge of the sorted keys
+		int i = 0, j = 0;
+		while(i < size && j < other.size)
+		{
+			if(keys[i] < other.keys[j])
+			{ i++; }
+			else if(keys[i] > other.keys[j])
+			{ j++; }
+			else
+			{
+				Container container = containers[i].and(other.containers[j]);
+				if(container != null)
+				{ ret.append(keys[i], container); }
+				i++;
+				j++;
+			}
+		}
+
+		return ret;
+	}
+
+	/**
+	 * Add a container after the last one
+	 */
+	private void append(char high, Container container)
+	{
+		if(size == keys.length)
+		{
+			keys = Arrays.copyOf(keys, size*2);
+			containers = Arrays.copyOf(containers, size*2);
+		}
+		keys[size] = high;
+		containers[size] = container;
+		size++;
+	}
+
+	/**
+	 * Position of the container of a key, (-insertion point - 1) if none
+	 */
+	private int find(char high)
+	{
+		return Arrays.binarySearch(keys, 0, size, high);
+	}
+
+	public String toString()
+	{
+		return "CompressedBitmap("+cardinality()+" values, "+size+" containers)";
+	}
+}
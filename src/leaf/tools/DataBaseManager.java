@@ -6,11 +6,16 @@ import java.sql.SQLException;
 import java.sql.Statement;
 import java.sql.Timestamp;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
 
 import org.h2.jdbcx.JdbcDataSource;
 
+import leaf.causes.Cause;
 import leaf.context.ContextData;
+import leaf.context.ContextDataCounter;
 
 /**
  * The DataBase Manager (DBM) is in charge of interacting with an embedded H2 database.
@@ -34,6 +39,11 @@ public class DataBaseManager {
 	 */
 	private static final String DBPATH = "~/git/LEAF/res/db/db";
 	
+	/**
+	 * Modification stamp of the causes, incremented each time a cause is inserted or updated
+	 */
+	private volatile long causesVersion = 0;
+	
 	
 	
 	
@@ -61,6 +71,12 @@ public class DataBaseManager {
 		String queryTableSituation = "CREATE TABLE IF NOT EXISTS History(id INT PRIMARY KEY AUTO_INCREMENT, storeDate TIMESTAMP, task VARCHAR(255), success BOOLEAN, path VARCHAR(255) )";
 		String queryTableCauses = "CREATE TABLE IF NOT EXISTS Cause(id INT PRIMARY KEY AUTO_INCREMENT, subject VARCHAR(255), predicate VARCHAR(255), object VARCHAR(255), failBelief DOUBLE, numberFeedback INT )";
 		String queryTableLink = "CREATE TABLE IF NOT EXISTS Belonging(idCause INT, idSituation INT, PRIMARY KEY(idCause, idSituation) )";
+		//Number of situations of a task where a context data was observed, by outcome
+		String queryTableObservation = "CREATE TABLE IF NOT EXISTS Observation(task VARCHAR(255), subject VARCHAR(255), predicate VARCHAR(255), object VARCHAR(255), success INT, fail INT, PRIMARY KEY(task, subject, predicate, object) )";
+		//Context data observed in each situation of the history (the history index is built from it, see HistoryIndex)
+		String queryTableOccurrence = "CREATE TABLE IF NOT EXISTS Occurrence(idSituation INT, subject VARCHAR(255), predicate VARCHAR(255), object VARCHAR(255), PRIMARY KEY(idSituation, subject, predicate, object) )";
+		//Situations whose context data are counted in Observation and Occurrence
+		String queryColumnCounted = "ALTER TABLE History ADD COLUMN IF NOT EXISTS counted BOOLEAN DEFAULT FALSE";
 		
 		try {
 			Statement stmt = db.createStatement();
@@ -68,6 +84,9 @@ public class DataBaseManager {
 			stmt.execute(queryTableSituation);
 			stmt.execute(queryTableCauses);
 			stmt.execute(queryTableLink);
+			stmt.execute(queryTableObservation);
+			stmt.execute(queryTableOccurrence);
+			stmt.execute(queryColumnCounted);
 		} catch (SQLException e) {
 			e.printStackTrace();
 			System.exit(0);
@@ -94,9 +113,12 @@ public class DataBaseManager {
 	 * Create a new entry for a situation in the history.
 	 * An entry is created at the same time as the situation's ontology is saved.
 	 * Date is set as the current one and the success is defulatly set to true.
+	 * @return Id of the entry, -1 if it failed
 	 */
-	public void addSituationToHistory(String task, String pathToOnto)
+	public int addSituationToHistory(String task, String pathToOnto)
 	{
+		int ret = -1;
+		
 		try {
 			Statement stmt = db.createStatement();
 			
@@ -104,27 +126,196 @@ public class DataBaseManager {
 			Timestamp timestamp = new Timestamp(date.getTime());
 			String query = "INSERT INTO History(storeDate, task, success, path) VALUES('"+timestamp+"', '"+task+"', 'true', '"+pathToOnto+"' )";
 			
-			stmt.execute(query);
+			stmt.executeUpdate(query, Statement.RETURN_GENERATED_KEYS);
+			
+			ResultSet keys = stmt.getGeneratedKeys();
+			if(keys.next())
+			{ ret = keys.getInt(1); }
 		} catch (SQLException e) {
 			e.printStackTrace();
 		}
+		
+		return ret;
 	}
 	
 	/**
-	 * Set the last stored situation history success value to false.
+	 * Count the context data observed in a situation of the history (once per situation): their counters of the task
+	 * are incremented and their occurrences in the situation are stored. The situation is then marked as counted.
 	 */
-	public void updateFailLastAction()
+	public void addObservations(String task, int idSituation, boolean success, Collection<ContextData> cds)
 	{
+		String column = success ? "success" : "fail";
+		
 		try {
 			Statement stmt = db.createStatement();
 			
-			String query = "UPDATE History SET success=false WHERE storeDate = (SELECT MAX(storeDate) FROM History)";
+			for(ContextData cd: new LinkedHashSet<ContextData>(cds))
+			{
+				String update = "UPDATE Observation SET "+column+"="+column+"+1 "
+						+ "WHERE task='"+task+"' AND subject='"+cd.getEntity()+"' AND predicate='"+cd.getProperty()+"' AND object='"+cd.getValue()+"' ";
+				
+				if(stmt.executeUpdate(update) == 0)
+				{
+					String insert = "INSERT INTO Observation(task, subject, predicate, object, success, fail) "
+							+ "VALUES('"+task+"', '"+cd.getEntity()+"', '"+cd.getProperty()+"', '"+cd.getValue()+"', "+(success ? "1, 0" : "0, 1")+" )";
+					stmt.execute(insert);
+				}
+				
+				stmt.addBatch("MERGE INTO Occurrence(idSituation, subject, predicate, object) "
+						+ "VALUES("+idSituation+", '"+cd.getEntity()+"', '"+cd.getProperty()+"', '"+cd.getValue()+"' )");
+			}
 			
-			stmt.execute(query);
+			stmt.executeBatch();
+			stmt.execute("UPDATE History SET counted=true WHERE id="+idSituation);
+		} catch (SQLException e) {
+			e.printStackTrace();
+		}
+	}
+	
+	/**
+	 * Move the context data counted in a successful situation to the failing ones 
+	 * (the situation failed after all, see updateFailLastAction()), from its stored occurrences
+	 */
+	public void moveObservationsToFail(String task, int idSituation)
+	{
+		try {
+			Statement stmt = db.createStatement();
+			
+			stmt.execute("UPDATE Observation o SET success=success-1, fail=fail+1 "
+					+ "WHERE task='"+task+"' AND EXISTS (SELECT * FROM Occurrence c WHERE c.idSituation="+idSituation+" "
+					+ "AND c.subject=o.subject AND c.predicate=o.predicate AND c.object=o.object)");
+		} catch (SQLException e) {
+			e.printStackTrace();
+		}
+	}
+	
+	/**
+	 * Get the number of successful and failing situations of a task where each context data was observed,
+	 * with one lookup (by primary key) per context data
+	 * @param success Filled with the number of successful situations
+	 * @param fail Filled with the number of failing situations
+	 */
+	public void getObservationCounts(String task, Collection<ContextData> cds, ContextDataCounter success, ContextDataCounter fail)
+	{
+		try {
+			Statement stmt = db.createStatement();
+			
+			for(ContextData cd: new LinkedHashSet<ContextData>(cds))
+			{
+				ResultSet res = stmt.executeQuery("SELECT success, fail FROM Observation "
+						+ "WHERE task='"+task+"' AND subject='"+cd.getEntity()+"' AND predicate='"+cd.getProperty()+"' AND object='"+cd.getValue()+"' ");
+				
+				if(res.next())
+				{
+					success.add(cd, res.getInt("success"));
+					fail.add(cd, res.getInt("fail"));
+				}
+			}
 		} catch (SQLException e) {
 			e.printStackTrace();
 		}
 	}
+	
+	/**
+	 * Get the context data observed in each counted situation of a task (see addObservations()), by id of situation
+	 */
+	public HashMap<Integer, ArrayList<ContextData>> getOccurrences(String task)
+	{
+		HashMap<Integer, ArrayList<ContextData>> ret = new HashMap<Integer, ArrayList<ContextData>>();
+		
+		try {
+			ResultSet res = executeQuery("SELECT c.idSituation, c.subject, c.predicate, c.object FROM Occurrence c "
+					+ "JOIN History h ON h.id=c.idSituation WHERE h.task LIKE '"+task+"' ");
+			
+			while(res.next())
+			{
+				ArrayList<ContextData> cds = ret.get(res.getInt("idSituation"));
+				if(cds == null)
+				{
+					cds = new ArrayList<ContextData>();
+					ret.put(res.getInt("idSituation"), cds);
+				}
+				cds.add(ContextData.of(res.getString("subject"), res.getString("predicate"), res.getString("object")));
+			}
+		} catch (SQLException e) {
+			e.printStackTrace();
+		}
+		
+		return ret;
+	}
+	
+	/**
+	 * Get the paths of the situations of a task that are not counted yet, by id
+	 * (i.e. saved before the observations were counted)
+	 */
+	public HashMap<Integer, String> getUncountedOntoPaths(String task, Boolean success)
+	{
+		HashMap<Integer, String> ret = new HashMap<Integer, String>();
+		
+		try {
+			ResultSet res = executeQuery("SELECT id, path FROM History "
+					+ "WHERE task LIKE '"+task+"' AND success='"+success+"' AND counted=false");
+			
+			while(res.next())
+			{
+				ret.put(res.getInt("id"), res.getString("path"));
+			}
+		} catch (SQLException e) {
+			e.printStackTrace();
+		}
+		
+		return ret;
+	}
+	
+	/**
+	 * Get path to all ontology that succeeded or failed for a give task, by id of situation
+	 */
+	public HashMap<Integer, String> getOntoPathsById(String task, Boolean success)
+	{
+		HashMap<Integer, String> ret = new HashMap<Integer, String>();
+		
+		try {
+			ResultSet res = executeQuery("SELECT id, path FROM History "
+					+ "WHERE task LIKE '"+task+"' AND success='"+success+"' ");
+			
+			while(res.next())
+			{
+				ret.put(res.getInt("id"), res.getString("path"));
+			}
+		} catch (SQLException e) {
+			e.printStackTrace();
+		}
+		
+		return ret;
+	}
+	
+	/**
+	 * Set the last stored situation history success value to false.
+	 * @return Id -> task of the situation that was set to failing (empty if none, or if it was already failing)
+	 */
+	public HashMap<Integer, String> updateFailLastAction()
+	{
+		HashMap<Integer, String> ret = new HashMap<Integer, String>();
+		
+		try {
+			ResultSet res = executeQuery("SELECT id, task, success FROM History ORDER BY storeDate DESC, id DESC LIMIT 1");
+			
+			if(res.next())
+			{
+				int id = res.getInt("id");
+				
+				Statement stmt = db.createStatement();
+				stmt.execute("UPDATE History SET success=false WHERE id="+id);
+				
+				if(res.getBoolean("success"))
+				{ ret.put(id, res.getString("task")); }
+			}
+		} catch (SQLException e) {
+			e.printStackTrace();
+		}
+		
+		return ret;
+	}
 		
 	/**
 	 * Run a query
@@ -183,11 +374,11 @@ public class DataBaseManager {
 	
 	
 	/**
-	 * Get all context data (causes) of one task
+	 * Get all causes of one task, by context data
 	 */
-	public ArrayList<ContextData> getCD(String task)
+	public HashMap<ContextData, Cause> getCauses(String task)
 	{
-		ArrayList<ContextData> ret = new ArrayList<ContextData>();
+		HashMap<ContextData, Cause> ret = new HashMap<ContextData, Cause>();
 		
 		try {
 			
@@ -200,7 +391,53 @@ public class DataBaseManager {
 			
 			while(res.next())
 			{
-				ret.add( new ContextData(res.getString("subject"), res.getString("predicate"), res.getString("object"), res.getDouble("failBelief"), res.getInt("numberFeedback")) );
+				ContextData cd = ContextData.of(res.getString("subject"), res.getString("predicate"), res.getString("object"));
+				ret.put( cd, new Cause(cd, res.getDouble("failBelief"), res.getInt("numberFeedback")) );
+			}			
+			
+		} catch (SQLException e) {
+			// TODO Auto-generated catch block
+			e.printStackTrace();
+		}		
+		
+		return ret;
+	}
+	
+	/**
+	 * Get all causes of several tasks in a single query, by task then by context data
+	 * (each task has an entry, possibly empty)
+	 */
+	public HashMap<String, HashMap<ContextData, Cause>> getCauses(Collection<String> tasks)
+	{
+		HashMap<String, HashMap<ContextData, Cause>> ret = new HashMap<String, HashMap<ContextData, Cause>>();
+		
+		String taskList = "";
+		for(String task: tasks)
+		{
+			ret.put(task, new HashMap<ContextData, Cause>());
+			taskList += (taskList.isEmpty() ? "" : ", ") + "'"+task+"'";
+		}
+		
+		if(tasks.isEmpty())
+		{ return ret; }
+		
+		try {
+			
+			String query = "SELECT DISTINCT task, subject, object, predicate, failBelief, numberFeedback FROM Cause, Belonging, History "
+					+ "WHERE Cause.id = Belonging.idCause AND History.id = Belonging.idSituation "
+					+ "AND History.task IN ("+taskList+") ";
+			
+			LeafLog.d("DBM", "Running: "+query);
+			ResultSet res = executeQuery( query );
+			
+			while(res.next())
+			{
+				HashMap<ContextData, Cause> causes = ret.get(res.getString("task"));
+				if(causes != null)
+				{
+					ContextData cd = ContextData.of(res.getString("subject"), res.getString("predicate"), res.getString("object"));
+					causes.put( cd, new Cause(cd, res.getDouble("failBelief"), res.getInt("numberFeedback")) );
+				}
 			}			
 			
 		} catch (SQLException e) {
@@ -211,6 +448,14 @@ public class DataBaseManager {
 		return ret;
 	}
 	
+	/**
+	 * Modification stamp of the causes: if unchanged, causes previously loaded are still up to date
+	 */
+	public long getCausesVersion()
+	{
+		return causesVersion;
+	}
+	
 	/**
 	 * Get the last failing situation path for one given task
 	 */
@@ -262,41 +507,44 @@ public class DataBaseManager {
 	}
 	
 	/**
-	 * Insert a new context data
-	 * Belief and nbrFeedback must be set !
+	 * Insert a new cause
 	 */
-	public void insertContextData(String task, ContextData cd)
+	public void insertCause(String task, Cause cause)
 	{
+		ContextData cd = cause.getContextData();
 		try {
 			Statement stmt = db.createStatement();
 			
 			String query = "INSERT INTO Cause(subject, predicate, object, failBelief, numberFeedback) "
-					+ "VALUES('"+cd.getEntity()+"', '"+cd.getProperty()+"', '"+cd.getValue()+"', '"+cd.getBelief()+"', '"+cd.getNbrFeedback()+"' )";
+					+ "VALUES('"+cd.getEntity()+"', '"+cd.getProperty()+"', '"+cd.getValue()+"', '"+cause.getBelief()+"', '"+cause.getNbrFeedback()+"' )";
 			
 			stmt.execute(query);
 			
 			//Adding relation to last failing situations
 			createBelonging(task, cd);
+			causesVersion++;
 		} catch (SQLException e) {
 			e.printStackTrace();
 		}
 	}
 	
 	/**
-	 * Update the context data with the same subject, predicate and object
+	 * Update the cause with the same subject, predicate and object
 	 */
-	public void updateContextData(String task, ContextData cd)
+	public void updateCause(String task, Cause cause)
 	{
+		ContextData cd = cause.getContextData();
 		try {
 			Statement stmt = db.createStatement();
 			
-			String query = "UPDATE Cause SET failBelief='"+cd.getBelief()+"', numberFeedback='"+cd.getNbrFeedback()+"' "
+			String query = "UPDATE Cause SET failBelief='"+cause.getBelief()+"', numberFeedback='"+cause.getNbrFeedback()+"' "
 					+ "WHERE subject LIKE '"+cd.getEntity()+"' AND predicate LIKE '"+cd.getProperty()+"' AND object LIKE '"+cd.getValue()+"' ";
 			
 			stmt.execute(query);
 			
 			//Adding relation to last failing situations
 			createBelonging(task, cd);
+			causesVersion++;
 		} catch (SQLException e) {
 			e.printStackTrace();
 		}
@@ -0,0 +1,293 @@
+package leaf.tools;
+
+import java.lang.ref.SoftReference;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+import leaf.context.ContextData;
+import leaf.ontology.Ontology;
+
+/**
+ * Cache of the context data of the situations of the history, by path.
+ * History files are never modified once saved: a situation is parsed once, then its context data are kept
+ * as an array of (interned) context data, see ContextData.of(): the cache keeps them from being reclaimed.
+ * The cache is bounded by its weight (number of context data kept), the least recently used situations are evicted first.
+ * Optionally (SOFTREFERENCES), the entries are softly referenced and can be reclaimed under memory pressure.
+ * It uses the singleton paradigm and is thread safe: parsing is done outside of the lock, and a situation being parsed
+ * by a thread (e.g. prefetched, see Extraction.prefetchHistory()) is awaited by the others instead of being parsed again.
+ * @author Nathan Ramoly
+ *
+ */
+public class HistoryCache {
+
+	/** Attributes **/
+
+	/**
+	 * Maximum weight of the cache (number of context data kept)
+	 */
+	public static final long MAXWEIGHT = 2000000;
+
+	/**
+	 * Weight of an entry in addition to its context data
+	 */
+	private static final int ENTRYWEIGHT = 16;
+
+	/**
+	 * Keep the entries through soft references (reclaimed by the GC under memory pressure)
+	 */
+	public static final boolean SOFTREFERENCES = false;
+
+	/**
+	 * Entry of the cache
+	 */
+	private static class Entry {
+		/** Context data (null if SOFTREFERENCES) */
+		ContextData[] cds;
+		/** Context data (if SOFTREFERENCES) */
+		SoftReference<ContextData[]> softCds;
+		int weight;
+
+		ContextData[] getCds()
+		{
+			if(softCds != null)
+			{ return softCds.get(); }
+			else
+			{ return cds; }
+		}
+	}
+
+	/**
+	 * Entries by path, in access order (least recently used first)
+	 */
+	private final LinkedHashMap<String, Entry> entries;
+
+	/**
+	 * Situations being parsed, by path
+	 */
+	private final HashMap<String, FutureTask<ContextData[]>> loading;
+
+	private long weight;
+
+	/**
+	 * Metrics
+	 */
+	private long nbHits;
+
+	private long nbMisses;
+
+	private long nbEvictions;
+
+
+	/** Constructor and singleton design pattern **/
+
+	private HistoryCache()
+	{
+		entries = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+		loading = new HashMap<String, FutureTask<ContextData[]>>();
+		weight = 0;
+		nbHits = 0;
+		nbMisses = 0;
+		nbEvictions = 0;
+	}
+
+	/**
+	 * The instance
+	 */
+	private static HistoryCache INSTANCE = null;
+
+	/**
+	 * Creation or getting of the instance.
+	 */
+	public static synchronized HistoryCache getInstance()
+	{
+		if (INSTANCE == null)
+		{ INSTANCE = new HistoryCache(); }
+		return INSTANCE;
+	}
+
+
+	/** Methods **/
+
+	/**
+	 * Get the context data of a situation of the history, the file is parsed only if the situation is not cached
+	 * (nor being parsed by another thread).
+	 * The returned list can be modified.
+	 */
+	public ArrayList<ContextData> get(final String path)
+	{
+		FutureTask<ContextData[]> load;
+		boolean loader = false;
+
+		synchronized(this)
+		{
+			ContextData[] cds = lookup(path);
+			if(cds != null)
+			{ return decode(cds); }
+
+			load = loading.get(path);
+			if(load == null)
+			{
+				load = new FutureTask<ContextData[]>(new Callable<ContextData[]>() {
+					@Override
+					public ContextData[] call() {
+						return parse(path);
+					}
+				});
+				loading.put(path, load);
+				loader = true;
+				nbMisses++;
+			}
+			else
+			{ nbHits++; }
+		}
+
+		//Parsing outside of the lock
+		if(loader)
+		{ load.run(); }
+
+		try {
+			ContextData[] cds = load.get();
+			if(loader)
+			{ put(path, cds); }
+			return decode(cds);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return decode(parse(path));
+		} catch (ExecutionException e) {
+			throw new RuntimeException("Failed to read situation "+path, e.getCause());
+		} finally {
+			if(loader)
+			{ endLoading(path); }
+		}
+	}
+
+	/**
+	 * True if the situation is cached or being parsed
+	 */
+	public synchronized boolean contains(String path)
+	{
+		Entry entry = entries.get(path);
+		return (entry != null && entry.getCds() != null) || loading.containsKey(path);
+	}
+
+	/**
+	 * Parse a situation of the history
+	 */
+	private static ContextData[] parse(String path)
+	{
+		ArrayList<ContextData> cds = new Ontology(path).getContextData();
+
+		return cds.toArray(new ContextData[cds.size()]);
+	}
+
+	private static ArrayList<ContextData> decode(ContextData[] cds)
+	{
+		return new ArrayList<ContextData>(Arrays.asList(cds));
+	}
+
+	private synchronized void endLoading(String path)
+	{
+		loading.remove(path);
+	}
+
+	/**
+	 * Get the cached context data of a situation (counted as a hit), null if not cached
+	 */
+	private ContextData[] lookup(String path)
+	{
+		Entry entry = entries.get(path);
+		if(entry == null)
+		{ return null; }
+
+		ContextData[] cds = entry.getCds();
+
+		//Reclaimed by the GC
+		if(cds == null)
+		{
+			entries.remove(path);
+			weight -= entry.weight;
+		}
+		else
+		{ nbHits++; }
+
+		return cds;
+	}
+
+	/**
+	 * Add a situation to the cache, evicting the least recently used ones if needed
+	 */
+	private synchronized void put(String path, ContextData[] cds)
+	{
+		Entry entry = new Entry();
+		if(SOFTREFERENCES)
+		{ entry.softCds = new SoftReference<ContextData[]>(cds); }
+		else
+		{ entry.cds = cds; }
+		entry.weight = cds.length + ENTRYWEIGHT;
+
+		Entry old = entries.put(path, entry);
+		if(old != null)
+		{ weight -= old.weight; }
+		weight += entry.weight;
+
+		//Evict least recently used (never the new one)
+		Iterator<Map.Entry<String, Entry>> it = entries.entrySet().iterator();
+		while(weight > MAXWEIGHT && entries.size() > 1)
+		{
+			Entry evicted = it.next().getValue();
+			it.remove();
+			weight -= evicted.weight;
+			nbEvictions++;
+		}
+	}
+
+	/**
+	 * Remove all situations
+	 */
+	public synchronized void clear()
+	{
+		entries.clear();
+		weight = 0;
+	}
+
+	public synchronized int size()
+	{
+		return entries.size();
+	}
+
+	/**
+	 * Current weight (number of context data kept, plus ENTRYWEIGHT per situation)
+	 */
+	public synchronized long getWeight()
+	{
+		return weight;
+	}
+
+	public synchronized long getNbHits()
+	{
+		return nbHits;
+	}
+
+	public synchronized long getNbMisses()
+	{
+		return nbMisses;
+	}
+
+	public synchronized long getNbEvictions()
+	{
+		return nbEvictions;
+	}
+
+	public synchronized String toString()
+	{
+		return "HistoryCache situations="+entries.size()+" weight="+weight+"/"+MAXWEIGHT+" hits="+nbHits
+				+" misses="+nbMisses+" evictions="+nbEvictions;
+	}
+}
@@ -0,0 +1,229 @@
+package leaf.tools;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+
+import leaf.context.ContextData;
+
+/**
+ * Inverted index of the history: for each context data, the bitmap of the situations (ids in database) where it was observed,
+ * and for each task, the bitmaps of its successful and failing situations.
+ * The support of a set of context data in the successful (or failing) situations of a task is then the cardinality
+ * of the intersection of bitmaps (see Apriori).
+ * The database is the durable source: the context data of each situation are stored when it is saved
+ * (see DataBaseManager.addObservations()), the history of a task is indexed from them at its first use (see load()),
+ * without reading the history files. It is then kept up to date by the live situation (see addSituation() and setFailed()).
+ * The number of situations where each context data was observed are kept by the counters in database.
+ * It uses the singleton paradigm and is thread safe.
+ * @author Nathan Ramoly
+ *
+ */
+public class HistoryIndex {
+
+	/** Attributes **/
+
+	/**
+	 * Situations where each context data was observed (the index keeps the context data it knows, see ContextData.of())
+	 */
+	private final HashMap<ContextData, CompressedBitmap> occurrences;
+
+	/**
+	 * Successful and failing situations, by (loaded) task
+	 */
+	private final HashMap<String, CompressedBitmap> successSituations;
+
+	private final HashMap<String, CompressedBitmap> failSituations;
+
+	/**
+	 * Tasks whose whole history is counted in database (see countHistory())
+	 */
+	private final HashSet<String> countedTasks;
+
+
+	/** Constructor and singleton design pattern **/
+
+	private HistoryIndex()
+	{
+		occurrences = new HashMap<ContextData, CompressedBitmap>();
+		successSituations = new HashMap<String, CompressedBitmap>();
+		failSituations = new HashMap<String, CompressedBitmap>();
+		countedTasks = new HashSet<String>();
+	}
+
+	/**
+	 * The instance
+	 */
+	private static HistoryIndex INSTANCE = null;
+
+	/**
+	 * Creation or getting of the instance.
+	 */
+	public static synchronized HistoryIndex getInstance()
+	{
+		if (INSTANCE == null)
+		{ INSTANCE = new HistoryIndex(); }
+		return INSTANCE;
+	}
+
+
+	/** Methods **/
+
+	/**
+	 * Count in database the situations of a task saved before their context data were stored (see DataBaseManager.addObservations()).
+	 * Their files are read (see Extraction.prefetchHistory() to read them in parallel beforehand), but only once:
+	 * they are then marked as counted. Nothing is read from the database again for this task.
+	 */
+	public synchronized void countHistory(String task)
+	{
+		if(countedTasks.contains(task))
+		{ return; }
+
+		DataBaseManager dbm = DataBaseManager.getInstance();
+
+		for(boolean success: new boolean[]{true, false})
+		{
+			HashMap<Integer, String> paths = dbm.getUncountedOntoPaths(task, success);
+
+			if(!paths.isEmpty())
+			{ LeafLog.i("HistoryIndex", "Counting context data of "+paths.size()+" situations in history for task "+task); }
+
+			for(Map.Entry<Integer, String> entry: paths.entrySet())
+			{
+				dbm.addObservations(task, entry.getKey(), success, HistoryCache.getInstance().get(entry.getValue()));
+			}
+		}
+
+		countedTasks.add(task);
+	}
+
+	/**
+	 * True if the whole history of the task is counted in database
+	 */
+	public synchronized boolean isCounted(String task)
+	{
+		return countedTasks.contains(task);
+	}
+
+	/**
+	 * Index the history of a task from the database, if not done yet
+	 */
+	public synchronized void load(String task)
+	{
+		if(isLoaded(task))
+		{ return; }
+
+		countHistory(task);
+
+		DataBaseManager dbm = DataBaseManager.getInstance();
+
+		CompressedBitmap success = new CompressedBitmap();
+		CompressedBitmap fail = new CompressedBitmap();
+
+		for(int id: dbm.getOntoPathsById(task, true).keySet())
+		{ success.add(id); }
+		for(int id: dbm.getOntoPathsById(task, false).keySet())
+		{ fail.add(id); }
+
+		HashMap<Integer, ArrayList<ContextData>> occurrences = dbm.getOccurrences(task);
+
+		LeafLog.i("HistoryIndex", "Indexing "+occurrences.size()+" situations in history for task "+task);
+
+		for(Map.Entry<Integer, ArrayList<ContextData>> entry: occurrences.entrySet())
+		{
+			index(entry.getKey(), entry.getValue());
+		}
+
+		successSituations.put(task, success);
+		failSituations.put(task, fail);
+	}
+
+	/**
+	 * True if the history of the task is indexed
+	 */
+	public synchronized boolean isLoaded(String task)
+	{
+		return successSituations.containsKey(task);
+	}
+
+	/**
+	 * Index a new situation of the history (ignored if the history of the task is not indexed yet: it will be at loading)
+	 * @param idSituation Id of the situation in database
+	 * @param cds Context data observed in the situation
+	 */
+	public synchronized void addSituation(String task, int idSituation, boolean success, Collection<ContextData> cds)
+	{
+		if(!isLoaded(task))
+		{ return; }
+
+		index(idSituation, cds);
+		if(success)
+		{ successSituations.get(task).add(idSituation); }
+		else
+		{ failSituations.get(task).add(idSituation); }
+	}
+
+	/**
+	 * A successful situation failed after all (see DataBaseManager.updateFailLastAction())
+	 */
+	public synchronized void setFailed(String task, int idSituation)
+	{
+		if(!isLoaded(task))
+		{ return; }
+
+		successSituations.get(task).remove(idSituation);
+		failSituations.get(task).add(idSituation);
+	}
+
+	private void index(int idSituation, Collection<ContextData> cds)
+	{
+		for(ContextData cd: cds)
+		{
+			CompressedBitmap bitmap = occurrences.get(cd);
+			if(bitmap == null)
+			{
+				bitmap = new CompressedBitmap();
+				occurrences.put(cd, bitmap);
+			}
+			bitmap.add(idSituation);
+		}
+	}
+
+	/**
+	 * Successful or failing situations of a task where a context data was observed (a new bitmap, the index can then be updated),
+	 * the history of the task is indexed if not done yet.
+	 */
+	public synchronized CompressedBitmap getSituations(String task, ContextData cd, boolean success)
+	{
+		load(task);
+
+		CompressedBitmap bitmap = occurrences.get(cd);
+		if(bitmap == null)
+		{ return new CompressedBitmap(); }
+
+		if(success)
+		{ return bitmap.and(successSituations.get(task)); }
+		else
+		{ return bitmap.and(failSituations.get(task)); }
+	}
+
+	/**
+	 * Number of successful or failing situations of a task (indexed if not done yet)
+	 */
+	public synchronized int getNbSituations(String task, boolean success)
+	{
+		load(task);
+
+		if(success)
+		{ return successSituations.get(task).cardinality(); }
+		else
+		{ return failSituations.get(task).cardinality(); }
+	}
+
+	public synchronized String toString()
+	{
+		return "HistoryIndex tasks="+successSituations.keySet()+" context data="+occurrences.size();
+	}
+}
@@ -99,7 +99,7 @@ public class LeafLog {
 		}
 	}
 	
-	private static void writeToFile(String message)
+	private static synchronized void writeToFile(String message)
 	{
 		if(LOGFILEENABLE)
 		{